@@ -0,0 +1,169 @@
+// $Id$
+
+/**
+ * Bounding volumes.
+ */
+
+package org.efalk.math;
+
+/**
+ * Axis-aligned boxes and spheres, singly or packed into arrays, and
+ * their transformation by a Matrix3d.  Use with Frustum to cull whole
+ * objects before transforming their vertices.
+ *
+ * Packed layouts:
+ *	boxes    minx,miny,minz, maxx,maxy,maxz  (6 elements apiece)
+ *	spheres  x,y,z, r                        (4 elements apiece)
+ *
+ * Transforms must be affine; perspective is ignored.
+ */
+public final class Bounds {
+
+    private Bounds() { }
+
+    /**
+     * Axis-aligned bounding box.
+     */
+    public static class Box {
+	public double minx, miny, minz;
+	public double maxx, maxy, maxz;
+
+	public Box() { }
+
+	public Box(double minx, double miny, double minz,
+	    double maxx, double maxy, double maxz)
+	{
+	    this.minx = minx; this.miny = miny; this.minz = minz;
+	    this.maxx = maxx; this.maxy = maxy; this.maxz = maxz;
+	}
+
+	/**
+	 * dst = the axis-aligned box enclosing this box transformed by m.
+	 * dst may be this.
+	 */
+	public void xform(Matrix3d mat, Box dst) {
+	    final double[] m = mat.rMat;
+	    double cx = (minx + maxx) * 0.5;
+	    double cy = (miny + maxy) * 0.5;
+	    double cz = (minz + maxz) * 0.5;
+	    double ex = (maxx - minx) * 0.5;
+	    double ey = (maxy - miny) * 0.5;
+	    double ez = (maxz - minz) * 0.5;
+	    double x = cx*m[0] + cy*m[4] + cz*m[8] + m[12];
+	    double y = cx*m[1] + cy*m[5] + cz*m[9] + m[13];
+	    double z = cx*m[2] + cy*m[6] + cz*m[10] + m[14];
+	    double hx = ex*Math.abs(m[0]) + ey*Math.abs(m[4]) +
+		ez*Math.abs(m[8]);
+	    double hy = ex*Math.abs(m[1]) + ey*Math.abs(m[5]) +
+		ez*Math.abs(m[9]);
+	    double hz = ex*Math.abs(m[2]) + ey*Math.abs(m[6]) +
+		ez*Math.abs(m[10]);
+	    dst.minx = x - hx; dst.miny = y - hy; dst.minz = z - hz;
+	    dst.maxx = x + hx; dst.maxy = y + hy; dst.maxz = z + hz;
+	}
+    }
+
+    /**
+     * Bounding sphere.
+     */
+    public static class Sphere {
+	public double x, y, z, r;
+
+	public Sphere() { }
+
+	public Sphere(double x, double y, double z, double r) {
+	    this.x = x; this.y = y; this.z = z; this.r = r;
+	}
+
+	/**
+	 * dst = a sphere enclosing this sphere transformed by m.
+	 * dst may be this.
+	 */
+	public void xform(Matrix3d mat, Sphere dst) {
+	    final double[] m = mat.rMat;
+	    double x0 = x, y0 = y, z0 = z;
+	    dst.x = x0*m[0] + y0*m[4] + z0*m[8] + m[12];
+	    dst.y = x0*m[1] + y0*m[5] + z0*m[9] + m[13];
+	    dst.z = x0*m[2] + y0*m[6] + z0*m[10] + m[14];
+	    dst.r = r * stretch(mat);
+	}
+    }
+
+    /**
+     * Transform count packed boxes.  Each result is the axis-aligned
+     * box enclosing the transformed original: the center is
+     * transformed, and the half-extents are multiplied by the absolute
+     * value of the upper 3x3 (Arvo's method).  src and dst may be the
+     * same array.
+     */
+    public static void xformBoxes(Matrix3d mat, double[] src, int srcOff,
+	double[] dst, int dstOff, int count)
+    {
+	final double[] m = mat.rMat;
+	final double m0 = m[0], m1 = m[1], m2 = m[2];
+	final double m4 = m[4], m5 = m[5], m6 = m[6];
+	final double m8 = m[8], m9 = m[9], m10 = m[10];
+	final double a0 = Math.abs(m0), a1 = Math.abs(m1), a2 = Math.abs(m2);
+	final double a4 = Math.abs(m4), a5 = Math.abs(m5), a6 = Math.abs(m6);
+	final double a8 = Math.abs(m8), a9 = Math.abs(m9);
+	final double a10 = Math.abs(m10);
+	for (int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=6, j+=6) {
+	    double cx = (src[i] + src[i+3]) * 0.5;
+	    double cy = (src[i+1] + src[i+4]) * 0.5;
+	    double cz = (src[i+2] + src[i+5]) * 0.5;
+	    double ex = (src[i+3] - src[i]) * 0.5;
+	    double ey = (src[i+4] - src[i+1]) * 0.5;
+	    double ez = (src[i+5] - src[i+2]) * 0.5;
+	    double x = cx*m0 + cy*m4 + cz*m8 + m[12];
+	    double y = cx*m1 + cy*m5 + cz*m9 + m[13];
+	    double z = cx*m2 + cy*m6 + cz*m10 + m[14];
+	    double hx = ex*a0 + ey*a4 + ez*a8;
+	    double hy = ex*a1 + ey*a5 + ez*a9;
+	    double hz = ex*a2 + ey*a6 + ez*a10;
+	    dst[j] = x - hx; dst[j+1] = y - hy; dst[j+2] = z - hz;
+	    dst[j+3] = x + hx; dst[j+4] = y + hy; dst[j+5] = z + hz;
+	}
+    }
+
+    /**
+     * Transform count packed spheres.  The radius is scaled by an upper
+     * bound on the stretch (spectral norm) of the upper 3x3, so the
+     * sphere always contains the transformed one.  The bound is exact
+     * when the rows are orthogonal, e.g. a rotation and a scale, and
+     * never more than the Frobenius norm.  src and dst may be the same
+     * array.
+     */
+    public static void xformSpheres(Matrix3d mat, double[] src, int srcOff,
+	double[] dst, int dstOff, int count)
+    {
+	final double[] m = mat.rMat;
+	final double scale = stretch(mat);
+	for (int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=4, j+=4) {
+	    double x = src[i], y = src[i+1], z = src[i+2];
+	    dst[j]   = x*m[0] + y*m[4] + z*m[8] + m[12];
+	    dst[j+1] = x*m[1] + y*m[5] + z*m[9] + m[13];
+	    dst[j+2] = x*m[2] + y*m[6] + z*m[10] + m[14];
+	    dst[j+3] = src[i+3] * scale;
+	}
+    }
+
+    /**
+     * Upper bound on the stretch (spectral norm) of mat's upper 3x3;
+     * see xformSpheres().
+     */
+    private static double stretch(Matrix3d mat) {
+	if (mat.getType() <= Matrix3d.RIGID)
+	    return 1;
+	final double[] m = mat.rMat;
+	double sx = m[0]*m[0] + m[1]*m[1] + m[2]*m[2];
+	double sy = m[4]*m[4] + m[5]*m[5] + m[6]*m[6];
+	double sz = m[8]*m[8] + m[9]*m[9] + m[10]*m[10];
+	// Gershgorin bound on the largest eigenvalue of M*Mt
+	double dxy = Math.abs(m[0]*m[4] + m[1]*m[5] + m[2]*m[6]);
+	double dxz = Math.abs(m[0]*m[8] + m[1]*m[9] + m[2]*m[10]);
+	double dyz = Math.abs(m[4]*m[8] + m[5]*m[9] + m[6]*m[10]);
+	double g = Math.max(sx + dxy + dxz,
+	    Math.max(sy + dxy + dyz, sz + dxz + dyz));
+	return Math.sqrt(Math.min(g, sx + sy + sz));
+    }
+}
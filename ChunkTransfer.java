@@ -0,0 +1,183 @@
+// $Id$
+
+/**
+ * What ChunkedUpload and RangedDownload have in common.
+ */
+
+package com.android.recovery;
+
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import android.util.Log;
+
+/**
+ * A file moved as fixed-size chunks, several at once on the
+ * WebHelper's executor, each retried by itself.  Subclasses say how to
+ * move one chunk and how to remember that it is done.
+ *
+ * Without a WebPolicy, a chunk that fails with an I/O error, 408, 429
+ * or 5xx is tried again, up to setRetries() times, after a backoff
+ * chosen as WebPolicy's is.  With one, the policy does the retrying
+ * and setRetries() is ignored, so that the two don't multiply; chunk
+ * requests are marked safe to resend, which the policy then does
+ * whatever their method.  A chunk that fails while its body is being
+ * read is not retried then, but the next run resumes it.
+ */
+abstract class ChunkTransfer {
+    private static final long BASE_MS = 500, MAX_MS = 30000;
+
+    protected final WebHelper mWeb;
+    protected final String mTag;
+    protected long mChunkSize = 4 * 1024 * 1024;
+    protected int mChunks;
+    protected BitSet mDone;
+    protected volatile WebHelper.WebError mFailure;
+    private int mParallelism = 4;
+    private int mRetries = 3;
+
+    protected ChunkTransfer(WebHelper web, String tag) {
+	mWeb = web;
+	mTag = tag;
+    }
+
+    /**
+     * Chunk size in bytes; default 4M.  Changing it invalidates any
+     * journal written with the old size.
+     */
+    public void setChunkSize(long bytes) {
+	mChunkSize = Math.max(bytes, 1);
+    }
+
+    /**
+     * Number of chunks in flight at once; default 4.  More than the
+     * per-host pool limit only queues.
+     */
+    public void setParallelism(int n) {
+	mParallelism = Math.max(n, 1);
+    }
+
+    /**
+     * Times to retry each chunk after the first try; default 3.
+     * Ignored if the WebHelper has a WebPolicy.
+     */
+    public void setRetries(int n) {
+	mRetries = Math.max(n, 0);
+    }
+
+    /**
+     * Number of chunks, once a transfer has started.
+     */
+    public int getChunks() {
+	return mChunks;
+    }
+
+    /**
+     * Number of chunks done, for progress reports.
+     */
+    public int getChunksDone() {
+	BitSet done = mDone;
+	if (done == null) return 0;
+	synchronized (done) {
+	    return done.cardinality();
+	}
+    }
+
+    /**
+     * One try at moving chunk index.
+     */
+    protected abstract void transfer(int index) throws WebHelper.WebError;
+
+    /**
+     * Record that chunk index is done.
+     */
+    protected abstract void done(int index);
+
+    /**
+     * Mark a chunk request as safe to send twice, for a WebPolicy.
+     */
+    protected static void resendable(HttpRequestBase req) {
+	req.getParams().setBooleanParameter(WebPolicy.IDEMPOTENT, true);
+    }
+
+    /**
+     * Move every chunk not marked done, mParallelism at a time, and
+     * wait for them all, even if interrupted.  Stops starting chunks
+     * after a failure, which is left in mFailure.
+     */
+    protected void runChunks() throws WebHelper.WebError {
+	final int n = mParallelism;
+	final Semaphore slots = new Semaphore(n);
+	Executor executor = mWeb.executor();
+	try {
+	    for (int i = 0; i < mChunks && mFailure == null; ++i) {
+		synchronized (mDone) {
+		    if (mDone.get(i)) continue;
+		}
+		slots.acquire();
+		final int index = i;
+		try {
+		    executor.execute(() -> {
+			try {
+			    retrying(index);
+			} catch (WebHelper.WebError e) {
+			    fail(e);
+			} catch (RuntimeException e) {
+			    Log.e(mTag, "Unknown exception: " + e);
+			    fail(new WebHelper.WebError(503,
+				"Exception: " + e));
+			} finally {
+			    slots.release();
+			}
+		    });
+		} catch (RejectedExecutionException e) {
+		    slots.release();
+		    fail(new WebHelper.WebError(503, "Exception: " + e));
+		}
+	    }
+	    slots.acquire(n);	// wait for the stragglers
+	} catch (InterruptedException e) {
+	    mFailure = new WebHelper.WebError(503, "Interrupted");
+	    // chunks in flight use our fields and the caller's file, so
+	    // let them finish; with mFailure set they won't retry
+	    slots.acquireUninterruptibly(n);
+	    Thread.currentThread().interrupt();
+	    throw mFailure;
+	}
+    }
+
+    /**
+     * Keep the first failure; the rest are usually its consequences.
+     */
+    private synchronized void fail(WebHelper.WebError e) {
+	if (mFailure == null)
+	    mFailure = e;
+    }
+
+    /**
+     * Move one chunk, retrying as described above, and mark it done.
+     */
+    private void retrying(int index) throws WebHelper.WebError {
+	int retries = mWeb.getPolicy() == null ? mRetries : 0;
+	for (int attempt = 0; ; ++attempt) {
+	    try {
+		transfer(index);
+		break;
+	    } catch (WebHelper.WebError e) {
+		int status = e.status;
+		if (attempt >= retries || mFailure != null ||
+		    (status < 500 && status != 408 && status != 429))
+		    throw e;
+		Log.w(mTag, "Chunk " + index + " failed, retrying: " + e);
+		long ms = WebPolicy.backoff(attempt, BASE_MS, MAX_MS);
+		if (Utils.sleep((int) ms))
+		    throw e;
+	    }
+	}
+	done(index);
+    }
+}
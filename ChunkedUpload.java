@@ -0,0 +1,249 @@
+// $Id$
+
+/**
+ * Parallel, resumable chunked file uploads for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+
+import android.util.Log;
+
+/**
+ * Uploads a large file as fixed-size chunks, several at once over the
+ * shared pool of keep-alive connections.  A failed chunk is retried by
+ * itself, as ChunkTransfer describes; if the upload still fails, the
+ * chunks already sent are remembered in a small journal file and the
+ * next upload() sends only the rest.
+ *
+ * Protocol.  The server must accept, at one url, a multipart/form-data
+ * POST for each chunk with these fields:
+ *
+ *	upload	id of this upload, the same for every chunk and kept
+ *		across resumes
+ *	index	chunk number, from 0
+ *	offset	byte offset of the chunk in the file
+ *	total	size of the whole file
+ *	chunks	number of chunks
+ *	file	the chunk's bytes, with the file's name as filename
+ *
+ * and store the bytes at offset, answering 200.  Chunks arrive in any
+ * order and the same chunk may arrive twice.  When all are in, one
+ * more POST carries upload, total and chunks plus
+ *
+ *	commit	the file's name
+ *
+ * and the server assembles the file; its response is what upload()
+ * returns.  Fields given to addField() are sent with every request.
+ *
+ *	ChunkedUpload up = new ChunkedUpload(web, url, file,
+ *	    new File(cacheDir, file.getName() + ".upload"));
+ *	up.addField("from", user);
+ *	HttpResponse resp = up.upload();
+ *
+ * The journal holds the upload id, the file's size and modification
+ * time and the chunk size, then the number of each chunk as it
+ * completes.  If the file has changed the journal is discarded and the
+ * upload starts over with a new id.  It is deleted once the commit
+ * succeeds.
+ *
+ * Chunks run on the WebHelper's executor, so a WebPolicy, WebMetrics
+ * and the pool limits apply to each of them.  One upload() at a time.
+ */
+class ChunkedUpload extends ChunkTransfer {
+    private static final String TAG = "ChunkedUpload";
+    private static final String MAGIC = "ChunkedUpload 1";
+
+    private final String mUrl;
+    private final File mFile;
+    private final File mJournal;
+    private final List<MultiPartProducer.MultiPartPair> mFields =
+	new ArrayList<MultiPartProducer.MultiPartPair>();
+    private String mId;
+    private String mSep;
+    private long mSize;
+    private OutputStream mLog;
+
+    /**
+     * @param url      where chunks and the commit are posted
+     * @param file     file to upload
+     * @param journal  checkpoint file for resuming; null to start
+     *                 from scratch every time
+     */
+    public ChunkedUpload(WebHelper web, String url, File file, File journal)
+    {
+	super(web, TAG);
+	mUrl = url;
+	mFile = file;
+	mJournal = journal;
+    }
+
+    /**
+     * Add a form field to every chunk and the commit.
+     */
+    public void addField(String name, String value) {
+	mFields.add(new MultiPartProducer.MultiPartPair(name, value));
+    }
+
+    /**
+     * Send whatever chunks the server does not have yet, then commit.
+     * On failure the journal is kept and calling upload() again
+     * resumes.
+     * @return the server's response to the commit
+     * @throws WebError
+     */
+    public HttpResponse upload() throws WebHelper.WebError {
+	long size = mFile.length();
+	if (!mFile.isFile())
+	    throw new WebHelper.WebError(404, "No such file: " + mFile);
+	mChunks = (int) Math.max(1, (size + mChunkSize - 1) / mChunkSize);
+	mFailure = null;
+	mSep = mWeb.genSep();
+	mSize = size;
+	try {
+	    openJournal(size);
+	    try {
+		runChunks();
+	    } finally {
+		synchronized (mDone) {
+		    mLog.close();
+		    mLog = null;
+		}
+	    }
+	} catch (IOException e) {
+	    Log.e(TAG, "Journal: " + e);
+	    throw new WebHelper.WebError(503, "Exception: " + e);
+	}
+	if (mFailure != null)
+	    throw mFailure;
+
+	List<MultiPartProducer.MultiPartPair> parts = form(size);
+	parts.add(new MultiPartProducer.MultiPartPair("commit",
+	    mFile.getName()));
+	HttpResponse resp = post(new HttpPost(mUrl), parts);
+	if (mJournal != null)
+	    mJournal.delete();
+	return resp;
+    }
+
+    /**
+     * Post one chunk.
+     */
+    protected void transfer(int index) throws WebHelper.WebError {
+	long offset = index * mChunkSize;
+	long len = Math.min(mChunkSize, mSize - offset);
+	List<MultiPartProducer.MultiPartPair> parts = form(mSize);
+	parts.add(new MultiPartProducer.MultiPartPair("index",
+	    Integer.toString(index)));
+	parts.add(new MultiPartProducer.MultiPartPair("offset",
+	    Long.toString(offset)));
+	parts.add(new MultiPartProducer.MultiPartPair("file", mFile,
+	    mFile.getName(), offset, len));
+	// the protocol allows a chunk twice, but not the commit
+	HttpPost req = new HttpPost(mUrl);
+	resendable(req);
+	WebHelper.consume(post(req, parts));
+    }
+
+    private List<MultiPartProducer.MultiPartPair> form(long size) {
+	List<MultiPartProducer.MultiPartPair> parts =
+	    new ArrayList<MultiPartProducer.MultiPartPair>(mFields);
+	parts.add(new MultiPartProducer.MultiPartPair("upload", mId));
+	parts.add(new MultiPartProducer.MultiPartPair("total",
+	    Long.toString(size)));
+	parts.add(new MultiPartProducer.MultiPartPair("chunks",
+	    Integer.toString(mChunks)));
+	return parts;
+    }
+
+    private HttpResponse post(HttpPost req,
+	List<MultiPartProducer.MultiPartPair> parts) throws WebHelper.WebError
+    {
+	MultiPartProducer.Entity e;
+	try {
+	    e = new MultiPartProducer.Entity(mSep, parts);
+	} catch (IOException e1) {
+	    Log.e(TAG, "IO exception: " + e1);
+	    throw new WebHelper.WebError(503, "Exception: " + e1);
+	}
+	return mWeb.post(req, e);
+    }
+
+    /**
+     * Read the journal, if it matches this file and chunk size, and
+     * open it for appending; otherwise start a new one.
+     */
+    private void openJournal(long size) throws IOException {
+	String header = " " + size + " " + mFile.lastModified() + " " +
+	    mChunkSize;
+	mDone = new BitSet(mChunks);
+	mId = null;
+	if (mJournal == null) {
+	    mId = UUID.randomUUID().toString();
+	    mLog = new OutputStream() {
+		public void write(int b) {}
+	    };
+	    return;
+	}
+	if (mJournal.exists()) {
+	    BufferedReader in = new BufferedReader(new FileReader(mJournal));
+	    try {
+		String line = in.readLine();
+		if (line != null && line.startsWith(MAGIC + " ") &&
+		    line.endsWith(header))
+		{
+		    mId = line.substring(MAGIC.length() + 1,
+					 line.length() - header.length());
+		    while ((line = in.readLine()) != null) {
+			try {
+			    int i = Integer.parseInt(line);
+			    if (i >= 0 && i < mChunks) mDone.set(i);
+			} catch (NumberFormatException e) {
+			    // torn last line from a crash
+			}
+		    }
+		}
+	    } finally {
+		in.close();
+	    }
+	}
+	if (mId != null && !mId.isEmpty() && mId.indexOf(' ') < 0) {
+	    mLog = new FileOutputStream(mJournal, true);
+	    // a torn last line would swallow our first entry
+	    mLog.write('\n');
+	} else {
+	    mDone.clear();
+	    mId = UUID.randomUUID().toString();
+	    mLog = new FileOutputStream(mJournal);
+	    mLog.write((MAGIC + " " + mId + header + "\n").getBytes("UTF-8"));
+	}
+	mLog.flush();
+    }
+
+    protected void done(int index) {
+	synchronized (mDone) {
+	    mDone.set(index);
+	    if (mLog == null) return;		// upload() gave up waiting
+	    try {
+		mLog.write((index + "\n").getBytes("UTF-8"));
+		mLog.flush();
+	    } catch (IOException e) {
+		// the chunk is still sent; at worst it is sent again
+		Log.w(TAG, "Journal: " + e);
+	    }
+	}
+    }
+}
@@ -0,0 +1,248 @@
+// $Id$
+
+/**
+ * Streaming application/x-www-form-urlencoded bodies for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Percent-encodes form fields straight from the caller's strings into
+ * a per-thread byte buffer that is written to the connection as it
+ * fills.  There are no NameValuePair objects, no encoded String and no
+ * byte[] per request, and the Content-Length is worked out exactly
+ * beforehand, so the body is not chunked.
+ *
+ * The output is byte for byte what Android's UrlEncodedFormEntity
+ * (HttpClient 4.0) produces with UTF-8: letters, digits and "-_.*" as
+ * is, space as '+', everything else as %XX of its UTF-8 bytes, a lone
+ * surrogate as '?', and a null value as an empty one, "name=".  Later
+ * HttpClients send a null value as the name alone.
+ *
+ *	web.post(url, new FormEncoder.Entity("user", name, "q", query));
+ *
+ * The entity keeps a reference to its fields and encodes them each
+ * time it is written, so it can be retried; don't change the map
+ * until the request is done.
+ */
+class FormEncoder {
+    private static final int BUFSIZE = 8 * 1024;
+    private static final int MAXCHAR = 12;	// %XX%XX%XX%XX
+    private static final byte[] hex = "0123456789ABCDEF".getBytes();
+    private static final ThreadLocal<byte[]> sBuffer =
+	new ThreadLocal<byte[]>() {
+	    protected byte[] initialValue() {
+		return new byte[BUFSIZE];
+	    }
+	};
+
+    private FormEncoder() {}
+
+    /**
+     * Return true if c is sent as is.
+     */
+    private static boolean safe(char c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+	    (c >= '0' && c <= '9') ||
+	    c == '-' || c == '_' || c == '.' || c == '*';
+    }
+
+    /**
+     * Return the encoded length of s in bytes.
+     */
+    static long length(CharSequence s) {
+	long n = 0;
+	int len = s.length();
+	for (int i = 0; i < len; ++i) {
+	    char c = s.charAt(i);
+	    if (c < 0x80)
+		n += safe(c) || c == ' ' ? 1 : 3;
+	    else if (c < 0x800)
+		n += 6;
+	    else if (Character.isHighSurrogate(c) && i + 1 < len &&
+		     Character.isLowSurrogate(s.charAt(i + 1))) {
+		n += 12;
+		++i;
+	    } else if (Character.isSurrogate(c))
+		n += 3;
+	    else
+		n += 9;
+	}
+	return n;
+    }
+
+    private static int escape(byte[] buf, int pos, int b) {
+	buf[pos] = '%';
+	buf[pos + 1] = hex[(b >> 4) & 0xf];
+	buf[pos + 2] = hex[b & 0xf];
+	return pos + 3;
+    }
+
+    /**
+     * Make room for one more encoded character, writing out buf if
+     * need be.  Returns the new position.
+     */
+    private static int room(byte[] buf, int pos, OutputStream out)
+	throws IOException
+    {
+	if (pos <= buf.length - MAXCHAR)
+	    return pos;
+	out.write(buf, 0, pos);
+	return 0;
+    }
+
+    /**
+     * Encode s into buf at pos, writing buf to out whenever it fills.
+     * Returns the new position.
+     */
+    static int encode(CharSequence s, byte[] buf, int pos, OutputStream out)
+	throws IOException
+    {
+	int len = s.length();
+	for (int i = 0; i < len; ++i) {
+	    pos = room(buf, pos, out);
+	    char c = s.charAt(i);
+	    if (c < 0x80) {
+		if (safe(c))
+		    buf[pos++] = (byte) c;
+		else if (c == ' ')
+		    buf[pos++] = '+';
+		else
+		    pos = escape(buf, pos, c);
+	    } else if (c < 0x800) {
+		pos = escape(buf, pos, 0xc0 | (c >> 6));
+		pos = escape(buf, pos, 0x80 | (c & 0x3f));
+	    } else if (Character.isHighSurrogate(c) && i + 1 < len &&
+		       Character.isLowSurrogate(s.charAt(i + 1))) {
+		int cp = Character.toCodePoint(c, s.charAt(++i));
+		pos = escape(buf, pos, 0xf0 | (cp >> 18));
+		pos = escape(buf, pos, 0x80 | ((cp >> 12) & 0x3f));
+		pos = escape(buf, pos, 0x80 | ((cp >> 6) & 0x3f));
+		pos = escape(buf, pos, 0x80 | (cp & 0x3f));
+	    } else if (Character.isSurrogate(c)) {
+		pos = escape(buf, pos, '?');
+	    } else {
+		pos = escape(buf, pos, 0xe0 | (c >> 12));
+		pos = escape(buf, pos, 0x80 | ((c >> 6) & 0x3f));
+		pos = escape(buf, pos, 0x80 | (c & 0x3f));
+	    }
+	}
+	return pos;
+    }
+
+    private static CharSequence chars(Object o) {
+	return o instanceof CharSequence ? (CharSequence) o : o.toString();
+    }
+
+    /**
+     * A form body, from a map or from names and values in line.  A
+     * null value is sent as an empty one.
+     */
+    public static class Entity extends AbstractHttpEntity {
+	private final Map<String,?> map;
+	private final String[] args;
+	private final long length;
+
+	/**
+	 * @param data  values may be any object; toString() is sent
+	 */
+	public Entity(Map<String,?> data) {
+	    map = data;
+	    args = null;
+	    long n = 0;
+	    for (Map.Entry<String,?> e : data.entrySet())
+		n += field(e.getKey(), e.getValue());
+	    length = n == 0 ? 0 : n - 1;
+	    setContentType(
+		"application/x-www-form-urlencoded; charset=UTF-8");
+	}
+
+	/**
+	 * @param args  name, value, name, value, ...
+	 */
+	public Entity(String... args) {
+	    map = null;
+	    this.args = args;
+	    long n = 0;
+	    for (int i = 0; i < args.length; i += 2)
+		n += field(args[i], i + 1 < args.length ? args[i + 1] : null);
+	    length = n == 0 ? 0 : n - 1;
+	    setContentType(
+		"application/x-www-form-urlencoded; charset=UTF-8");
+	}
+
+	/**
+	 * Length of one field, with its leading '&' and its '='.
+	 */
+	private static long field(String name, Object value) {
+	    long n = 2 + length(name);
+	    if (value != null)
+		n += length(chars(value));
+	    return n;
+	}
+
+	private static int field(String name, Object value, boolean first,
+	    byte[] buf, int pos, OutputStream out) throws IOException
+	{
+	    if (!first) {
+		pos = room(buf, pos, out);
+		buf[pos++] = '&';
+	    }
+	    pos = encode(name, buf, pos, out);
+	    pos = room(buf, pos, out);
+	    buf[pos++] = '=';
+	    if (value != null)
+		pos = encode(chars(value), buf, pos, out);
+	    return pos;
+	}
+
+	public long getContentLength() {
+	    return length;
+	}
+
+	public boolean isRepeatable() {
+	    return true;
+	}
+
+	public boolean isStreaming() {
+	    return false;
+	}
+
+	/**
+	 * Not the usual path, so this one does allocate.
+	 */
+	public InputStream getContent() throws IOException {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+	    writeTo(out);
+	    return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+	    byte[] buf = sBuffer.get();
+	    int pos = 0;
+	    boolean first = true;
+	    if (map != null) {
+		for (Map.Entry<String,?> e : map.entrySet()) {
+		    pos = field(e.getKey(), e.getValue(), first, buf, pos, out);
+		    first = false;
+		}
+	    } else {
+		for (int i = 0; i < args.length; i += 2) {
+		    pos = field(args[i], i + 1 < args.length ? args[i + 1] : null,
+			first, buf, pos, out);
+		    first = false;
+		}
+	    }
+	    out.write(buf, 0, pos);
+	}
+    }
+}
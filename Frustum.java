@@ -0,0 +1,130 @@
+// $Id$
+
+/**
+ * View frustum culling.
+ */
+
+package org.efalk.math;
+
+/**
+ * The six clip planes of a view frustum, extracted from a combined
+ * model-view-projection Matrix3d (Gribb and Hartmann), and tests of
+ * Bounds against them.  The batch cull methods test thousands of
+ * packed bounds in one call and return the indices of the visible
+ * ones, so that only those objects need their vertices transformed.
+ *
+ * Tests are conservative: a bound reported visible may still be
+ * slightly outside the frustum near its corners, but nothing inside
+ * is ever culled.
+ */
+public class Frustum {
+    // left, right, bottom, top, near, far; a,b,c,d apiece.  A point
+    // is inside a plane when a*x + b*y + c*z + d >= 0.
+    private final double[] planes = new double[24];
+
+    public Frustum() { }
+
+    public Frustum(Matrix3d mvp) {
+	set(mvp);
+    }
+
+    /**
+     * Extract the planes from a model-view-projection matrix.  With
+     * Matrix3d's row-vector convention, clip coordinates are the
+     * columns of the matrix dotted with (x,y,z,1), and the frustum is
+     * -w <= x,y,z <= w.  Objects given to the cull methods are then in
+     * the model space of mvp.
+     */
+    public void set(Matrix3d mvp) {
+	final double[] m = mvp.rMat;
+	for (int k = 0; k < 6; ++k) {
+	    int col = k / 2;
+	    double sign = (k & 1) == 0 ? 1 : -1;
+	    double a = m[3] + sign*m[col];
+	    double b = m[7] + sign*m[4+col];
+	    double c = m[11] + sign*m[8+col];
+	    double d = m[15] + sign*m[12+col];
+	    double len = Math.sqrt(a*a + b*b + c*c);
+	    if (len == 0)
+		throw new java.lang.ArithmeticException("degenerate frustum");
+	    planes[k*4] = a/len;
+	    planes[k*4+1] = b/len;
+	    planes[k*4+2] = c/len;
+	    planes[k*4+3] = d/len;
+	}
+    }
+
+    /**
+     * Return the planes; see the comment on the field.
+     */
+    public double[] getPlanes() {
+	return planes;
+    }
+
+    public boolean intersects(Bounds.Sphere s) {
+	return sphereVisible(s.x, s.y, s.z, s.r);
+    }
+
+    public boolean intersects(Bounds.Box b) {
+	return boxVisible(b.minx, b.miny, b.minz, b.maxx, b.maxy, b.maxz);
+    }
+
+    private boolean sphereVisible(double x, double y, double z, double r) {
+	final double[] p = planes;
+	for (int k = 0; k < 24; k += 4)
+	    if (p[k]*x + p[k+1]*y + p[k+2]*z + p[k+3] < -r)
+		return false;
+	return true;
+    }
+
+    /**
+     * A box is outside if its corner furthest along a plane's normal
+     * is behind that plane.
+     */
+    private boolean boxVisible(double x0, double y0, double z0,
+	double x1, double y1, double z1)
+    {
+	final double[] p = planes;
+	for (int k = 0; k < 24; k += 4) {
+	    double a = p[k], b = p[k+1], c = p[k+2];
+	    double x = a >= 0 ? x1 : x0;
+	    double y = b >= 0 ? y1 : y0;
+	    double z = c >= 0 ? z1 : z0;
+	    if (a*x + b*y + c*z + p[k+3] < 0)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Test count packed spheres (x,y,z,r) starting at spheres[off].
+     * The indices (0..count-1) of the visible ones are written to
+     * the front of visible[], in order.
+     * @return the number of visible spheres
+     */
+    public int cullSpheres(double[] spheres, int off, int count,
+	int[] visible)
+    {
+	int nvis = 0;
+	for (int n = 0, i = off; n < count; ++n, i += 4)
+	    if (sphereVisible(spheres[i], spheres[i+1], spheres[i+2],
+		    spheres[i+3]))
+		visible[nvis++] = n;
+	return nvis;
+    }
+
+    /**
+     * Test count packed boxes (minx,miny,minz,maxx,maxy,maxz) starting
+     * at boxes[off].  The indices of the visible ones are written to
+     * the front of visible[], in order.
+     * @return the number of visible boxes
+     */
+    public int cullBoxes(double[] boxes, int off, int count, int[] visible) {
+	int nvis = 0;
+	for (int n = 0, i = off; n < count; ++n, i += 6)
+	    if (boxVisible(boxes[i], boxes[i+1], boxes[i+2],
+		    boxes[i+3], boxes[i+4], boxes[i+5]))
+		visible[nvis++] = n;
+	return nvis;
+    }
+}
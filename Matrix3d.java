@@ -7,32 +7,109 @@
 package org.efalk.math;
 
 import java.lang.Math;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import android.util.Log;
 
+/**
+ * 4x4 transformation matrix, row-vector convention: v' = v * rMat.
+ *
+ * A Matrix3d has no hidden scratch state.  Operations that only read a
+ * matrix (xform, normalMatrix, matMul and invert with some other dst,
+ * rotateX/Y/Z with some other dst) may be run on a shared matrix from
+ * any number of threads at once, as long as nobody modifies it.
+ * Workers can derive their own matrices from a shared one with the
+ * static dst/src methods and never allocate.
+ */
 public class Matrix3d {
     private static final String TAG = "FlightDeck";
     private static final double[] iMat = {1,0,0,0, 0,1,0,0, 0,0,1,0, 0,0,0,1};
     public double[] rMat = new double[16];
-    private double[] t1 = new double[16];	// temporary
-    //private double[] t2 = new double[16];
+    private int type;
+    static volatile int parallelThreshold = 1 << 16;
+    static volatile int parallelChunk = 1 << 13;
+
+    /**
+     * Matrix types, in increasing order of generality.  Every operation
+     * keeps track of the type so it can use the cheapest kernel.  Code
+     * that writes rMat directly, or changes an array given to setMat(),
+     * must call classify() afterwards; until then the old type is used,
+     * and a fast kernel may give wrong results.
+     * IDENTITY     unity
+     * TRANSLATION  translation only
+     * RIGID        rotation and translation
+     * AFFINE       anything without perspective
+     * PROJECTIVE   anything at all
+     */
+    public static final int IDENTITY = 0;
+    public static final int TRANSLATION = 1;
+    public static final int RIGID = 2;
+    public static final int AFFINE = 3;
+    public static final int PROJECTIVE = 4;
 
     public Matrix3d() {
 	reset();
     }
 
+    public Matrix3d(Matrix3d m) {
+	set(m);
+    }
+
     /**
      * Reset transform to unity
      */
     public void reset() {
 	System.arraycopy(iMat, 0, rMat, 0, 16);
+	type = IDENTITY;
+    }
+
+    /**
+     * Return the matrix type, IDENTITY through PROJECTIVE.
+     */
+    public int getType() {
+	return type;
+    }
+
+    /**
+     * Examine rMat and set the matrix type accordingly.  Call this
+     * after modifying rMat directly.  Returns the new type.
+     */
+    public int classify() {
+	return type = classify(rMat);
+    }
+
+    /**
+     * Return the type of the given matrix, IDENTITY through PROJECTIVE.
+     * A matrix counts as RIGID if its upper 3x3 is orthonormal to
+     * within rounding error.
+     */
+    public static int classify(double[] m) {
+	final double eps = 1e-6;
+	if (m[3] != 0 || m[7] != 0 || m[11] != 0 || m[15] != 1)
+	    return PROJECTIVE;
+	boolean unit = true;
+	for (int i = 0; i < 11 && unit; ++i)
+	    if (i % 4 != 3)
+		unit = m[i] == iMat[i];
+	if (unit)
+	    return m[12] == 0 && m[13] == 0 && m[14] == 0 ?
+		IDENTITY : TRANSLATION;
+	for (int i = 0; i < 12; i += 4)
+	    for (int j = 0; j < 12; j += 4) {
+		double d = m[i]*m[j] + m[i+1]*m[j+1] + m[i+2]*m[j+2];
+		if (Math.abs(d - (i == j ? 1 : 0)) > eps)
+		    return AFFINE;
+	    }
+	return RIGID;
     }
 
     /**
      * Return the current transformation matrix.
      * Note: this returns a reference to the internal matrix, which
      * could theoretically be modified by the caller, affecting
-     * the internal value.
+     * the internal value; call classify() after doing so.
+     * The reference stays valid until the next setMat(double[]).
      */
     public double[] getMat() {
 	return rMat;
@@ -42,10 +119,11 @@ public class Matrix3d {
      * Replace the current transformation matrix.
      * Note: this copies a reference to the original matrix, which
      * could theoretically be modified by the caller, affecting
-     * the internal value.
+     * the internal value; call classify() after doing so.
      */
     public void setMat(double[] rMat) {
 	this.rMat = rMat;
+	classify();
     }
 
     /**
@@ -54,6 +132,23 @@ public class Matrix3d {
     public void setMat(float[] mat) {
 	for( int i = 0; i < 16; ++i )
 	    rMat[i] = mat[i];
+	classify();
+    }
+
+    /**
+     * Copy another Matrix3d into this one.
+     */
+    public void set(Matrix3d m) {
+	int t = m.type;
+	System.arraycopy(m.rMat, 0, rMat, 0, 16);
+	type = t;
+    }
+
+    /**
+     * Copy a Matrix3f into this matrix, widening to double.
+     */
+    public void set(Matrix3f m) {
+	setMat(m.rMat);
     }
 
     /**
@@ -61,57 +156,480 @@ public class Matrix3d {
      * Dst and src may be the same.
      */
     public void xform(double[] src, double[] dst) {
-	for(int i=0; i<src.length; i += 3) {
+	xformRange(rMat, type, src, 0, dst, 0, src.length/3, 3);
+    }
+
+    public void xform(float[] src, float[] dst) {
+	xformRange(rMat, type, src, 0, dst, 0, src.length/3, 3);
+    }
+
+    /**
+     * Same as xform(), but large arrays are split across the fork-join
+     * common pool.  Results are bit-identical to xform().  Small arrays
+     * are done serially; see setParallelism().
+     * The matrix is sampled once at the start; dst must not be read
+     * until this returns.
+     */
+    public void xformParallel(double[] src, double[] dst) {
+	xformParallel(src, 0, dst, 0, src.length/3, 3);
+    }
+
+    public void xformParallel(float[] src, float[] dst) {
+	xformParallel(src, 0, dst, 0, src.length/3, 3);
+    }
+
+    public void xformParallel(double[] src, int srcOff, double[] dst,
+	int dstOff, int count, int stride)
+    {
+	if (count < parallelThreshold)
+	    xformRange(rMat, type, src, srcOff, dst, dstOff, count, stride);
+	else
+	    ForkJoinPool.commonPool().invoke(new XformTask(rMat.clone(), type,
+		src, null, srcOff, dst, null, dstOff, count, stride));
+    }
+
+    public void xformParallel(float[] src, int srcOff, float[] dst,
+	int dstOff, int count, int stride)
+    {
+	if (count < parallelThreshold)
+	    xformRange(rMat, type, src, srcOff, dst, dstOff, count, stride);
+	else
+	    ForkJoinPool.commonPool().invoke(new XformTask(rMat.clone(), type,
+		null, src, srcOff, null, dst, dstOff, count, stride));
+    }
+
+    /**
+     * Tune the parallel transforms.
+     * @param threshold  below this many vertices, run serially
+     * @param chunk      minimum vertices handed to one fork-join task
+     */
+    public static void setParallelism(int threshold, int chunk) {
+	parallelThreshold = threshold;
+	parallelChunk = Math.max(chunk, 1);
+    }
+
+    /**
+     * Recursively split a vertex range in half until it is no larger
+     * than parallelChunk, then run the serial kernel on it.
+     */
+    private static class XformTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final double[] m;
+	private final int type;
+	private final double[] dsrc, ddst;
+	private final float[] fsrc, fdst;
+	private final int srcOff, dstOff, count, stride;
+
+	XformTask(double[] m, int type, double[] dsrc, float[] fsrc,
+	    int srcOff, double[] ddst, float[] fdst, int dstOff, int count,
+	    int stride)
+	{
+	    this.m = m;
+	    this.type = type;
+	    this.dsrc = dsrc; this.fsrc = fsrc; this.srcOff = srcOff;
+	    this.ddst = ddst; this.fdst = fdst; this.dstOff = dstOff;
+	    this.count = count;
+	    this.stride = stride;
+	}
+
+	@Override
+	protected void compute() {
+	    if (count <= parallelChunk) {
+		if (dsrc != null)
+		    xformRange(m, type, dsrc, srcOff, ddst, dstOff, count, stride);
+		else
+		    xformRange(m, type, fsrc, srcOff, fdst, dstOff, count, stride);
+		return;
+	    }
+	    int half = count / 2;
+	    int skip = half * stride;
+	    invokeAll(
+		new XformTask(m, type, dsrc, fsrc, srcOff,
+		    ddst, fdst, dstOff, half, stride),
+		new XformTask(m, type, dsrc, fsrc, srcOff + skip,
+		    ddst, fdst, dstOff + skip, count - half, stride));
+	}
+    }
+
+    /**
+     * Transform count vertices from an interleaved array, e.g.
+     * position+normal+uv.  Only the first three elements of each
+     * vertex are touched.
+     * @param src     source array
+     * @param srcOff  index of the first vertex in src
+     * @param dst     destination array; may be src
+     * @param dstOff  index of the first vertex in dst
+     * @param count   number of vertices
+     * @param stride  distance between vertices, in elements; >= 3
+     */
+    public void xform(double[] src, int srcOff, double[] dst, int dstOff,
+	int count, int stride)
+    {
+	xformRange(rMat, type, src, srcOff, dst, dstOff, count, stride);
+    }
+
+    public void xform(float[] src, int srcOff, float[] dst, int dstOff,
+	int count, int stride)
+    {
+	xformRange(rMat, type, src, srcOff, dst, dstOff, count, stride);
+    }
+
+    /**
+     * Vertex transform kernels shared by the serial and parallel paths.
+     */
+    static void xformRange(final double[] m, int type, double[] src,
+	int srcOff, double[] dst, int dstOff, int count, int stride)
+    {
+	if (type > TRANSLATION) {
+	    kernels.xform(m, src, srcOff, dst, dstOff, count, stride);
+	    return;
+	}
+	final double m12 = m[12], m13 = m[13], m14 = m[14];
+	for(int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=stride, j+=stride) {
+	    dst[j]   = src[i] + m12;
+	    dst[j+1] = src[i+1] + m13;
+	    dst[j+2] = src[i+2] + m14;
+	}
+    }
+
+    static void xformRange(final double[] m, int type, float[] src,
+	int srcOff, float[] dst, int dstOff, int count, int stride)
+    {
+	if (type <= TRANSLATION) {
+	    final double m12 = m[12], m13 = m[13], m14 = m[14];
+	    for(int n=0, i=srcOff, j=dstOff; n<count;
+		    ++n, i+=stride, j+=stride)
+	    {
+		dst[j]   = (float)(src[i] + m12);
+		dst[j+1] = (float)(src[i+1] + m13);
+		dst[j+2] = (float)(src[i+2] + m14);
+	    }
+	    return;
+	}
+	final double m0 = m[0], m1 = m[1], m2 = m[2];
+	final double m4 = m[4], m5 = m[5], m6 = m[6];
+	final double m8 = m[8], m9 = m[9], m10 = m[10];
+	final double m12 = m[12], m13 = m[13], m14 = m[14];
+	for(int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=stride, j+=stride) {
 	    double x = src[i];
 	    double y = src[i+1];
 	    double z = src[i+2];
-	    dst[i]   = x*rMat[0] + y*rMat[4] + z*rMat[8] + rMat[12];
-	    dst[i+1] = x*rMat[1] + y*rMat[5] + z*rMat[9] + rMat[13];
-	    dst[i+2] = x*rMat[2] + y*rMat[6] + z*rMat[10] + rMat[14];
+	    dst[j]   = (float)(x*m0 + y*m4 + z*m8 + m12);
+	    dst[j+1] = (float)(x*m1 + y*m5 + z*m9 + m13);
+	    dst[j+2] = (float)(x*m2 + y*m6 + z*m10 + m14);
 	}
     }
 
-    public void xform(float[] src, float[] dst) {
-	for(int i=0; i<src.length; i += 3) {
+    /**
+     * Transform count vertices stored as separate x, y, z arrays
+     * (structure of arrays), starting at index off.  The destination
+     * arrays may be the source arrays.  This layout vectorizes much
+     * better than xyz triples.
+     */
+    public void xformSoA(double[] xs, double[] ys, double[] zs,
+	double[] xd, double[] yd, double[] zd, int off, int count)
+    {
+	kernels.xformSoA(rMat, xs, ys, zs, xd, yd, zd, off, count);
+    }
+
+    /**
+     * Transform count interleaved vertices, positions and normals both.
+     * Positions are transformed as above; normals, found normOff
+     * elements into each vertex, are transformed by the inverse-transpose
+     * of the upper 3x3 so that they stay perpendicular to their
+     * surfaces under non-uniform scale.  Normals are not renormalized.
+     * @throws ArithmeticException if the upper 3x3 is singular
+     */
+    public void xform(double[] src, int srcOff, double[] dst, int dstOff,
+	int count, int stride, int normOff)
+    {
+	// The normal matrix, as normalMatrix() makes it, in locals
+	final double[] m = rMat;
+	final double n0, n1, n2, n3, n4, n5, n6, n7, n8;
+	if (type <= RIGID) {
+	    n0 = m[0]; n1 = m[1]; n2 = m[2];
+	    n3 = m[4]; n4 = m[5]; n5 = m[6];
+	    n6 = m[8]; n7 = m[9]; n8 = m[10];
+	} else {
+	    double c00 = m[5]*m[10] - m[6]*m[9];
+	    double c01 = m[6]*m[8] - m[4]*m[10];
+	    double c02 = m[4]*m[9] - m[5]*m[8];
+	    double det = m[0]*c00 + m[1]*c01 + m[2]*c02;
+	    if (det == 0)
+		throw new java.lang.ArithmeticException("singular matrix");
+	    double r = 1/det;
+	    n0 = c00*r;
+	    n1 = c01*r;
+	    n2 = c02*r;
+	    n3 = (m[2]*m[9] - m[1]*m[10])*r;
+	    n4 = (m[0]*m[10] - m[2]*m[8])*r;
+	    n5 = (m[1]*m[8] - m[0]*m[9])*r;
+	    n6 = (m[1]*m[6] - m[2]*m[5])*r;
+	    n7 = (m[2]*m[4] - m[0]*m[6])*r;
+	    n8 = (m[0]*m[5] - m[1]*m[4])*r;
+	}
+	xform(src, srcOff, dst, dstOff, count, stride);
+	for(int n=0, i=srcOff+normOff, j=dstOff+normOff; n<count;
+		++n, i+=stride, j+=stride)
+	{
 	    double x = src[i];
 	    double y = src[i+1];
 	    double z = src[i+2];
-	    dst[i]   = (float)(x*rMat[0] + y*rMat[4] + z*rMat[8] + rMat[12]);
-	    dst[i+1] = (float)(x*rMat[1] + y*rMat[5] + z*rMat[9] + rMat[13]);
-	    dst[i+2] = (float)(x*rMat[2] + y*rMat[6] + z*rMat[10] + rMat[14]);
+	    dst[j]   = x*n0 + y*n3 + z*n6;
+	    dst[j+1] = x*n1 + y*n4 + z*n7;
+	    dst[j+2] = x*n2 + y*n5 + z*n8;
+	}
+    }
+
+    public void xform(float[] src, int srcOff, float[] dst, int dstOff,
+	int count, int stride, int normOff)
+    {
+	// The normal matrix, as normalMatrix() makes it, in locals
+	final double[] m = rMat;
+	final double n0, n1, n2, n3, n4, n5, n6, n7, n8;
+	if (type <= RIGID) {
+	    n0 = m[0]; n1 = m[1]; n2 = m[2];
+	    n3 = m[4]; n4 = m[5]; n5 = m[6];
+	    n6 = m[8]; n7 = m[9]; n8 = m[10];
+	} else {
+	    double c00 = m[5]*m[10] - m[6]*m[9];
+	    double c01 = m[6]*m[8] - m[4]*m[10];
+	    double c02 = m[4]*m[9] - m[5]*m[8];
+	    double det = m[0]*c00 + m[1]*c01 + m[2]*c02;
+	    if (det == 0)
+		throw new java.lang.ArithmeticException("singular matrix");
+	    double r = 1/det;
+	    n0 = c00*r;
+	    n1 = c01*r;
+	    n2 = c02*r;
+	    n3 = (m[2]*m[9] - m[1]*m[10])*r;
+	    n4 = (m[0]*m[10] - m[2]*m[8])*r;
+	    n5 = (m[1]*m[8] - m[0]*m[9])*r;
+	    n6 = (m[1]*m[6] - m[2]*m[5])*r;
+	    n7 = (m[2]*m[4] - m[0]*m[6])*r;
+	    n8 = (m[0]*m[5] - m[1]*m[4])*r;
+	}
+	xform(src, srcOff, dst, dstOff, count, stride);
+	for(int n=0, i=srcOff+normOff, j=dstOff+normOff; n<count;
+		++n, i+=stride, j+=stride)
+	{
+	    double x = src[i];
+	    double y = src[i+1];
+	    double z = src[i+2];
+	    dst[j]   = (float)(x*n0 + y*n3 + z*n6);
+	    dst[j+1] = (float)(x*n1 + y*n4 + z*n7);
+	    dst[j+2] = (float)(x*n2 + y*n5 + z*n8);
+	}
+    }
+
+    /**
+     * Compute the normal matrix, i.e. the inverse-transpose of the
+     * upper 3x3 of this transform, into nm[9].  Apply it to a normal
+     * the same way rMat is applied to a vertex:
+     * n' = (nx*nm[0] + ny*nm[3] + nz*nm[6], ...)
+     * @throws ArithmeticException if the upper 3x3 is singular
+     */
+    public void normalMatrix(double[] nm) {
+	final double[] m = rMat;
+	if (type <= RIGID) {
+	    // Orthonormal: the inverse-transpose is the matrix itself
+	    nm[0] = m[0]; nm[1] = m[1]; nm[2] = m[2];
+	    nm[3] = m[4]; nm[4] = m[5]; nm[5] = m[6];
+	    nm[6] = m[8]; nm[7] = m[9]; nm[8] = m[10];
+	    return;
+	}
+	// Inverse-transpose == cofactor matrix / determinant
+	double c00 = m[5]*m[10] - m[6]*m[9];
+	double c01 = m[6]*m[8] - m[4]*m[10];
+	double c02 = m[4]*m[9] - m[5]*m[8];
+	double det = m[0]*c00 + m[1]*c01 + m[2]*c02;
+	if (det == 0)
+	    throw new java.lang.ArithmeticException("singular matrix");
+	double r = 1/det;
+	nm[0] = c00*r;
+	nm[1] = c01*r;
+	nm[2] = c02*r;
+	nm[3] = (m[2]*m[9] - m[1]*m[10])*r;
+	nm[4] = (m[0]*m[10] - m[2]*m[8])*r;
+	nm[5] = (m[1]*m[8] - m[0]*m[9])*r;
+	nm[6] = (m[1]*m[6] - m[2]*m[5])*r;
+	nm[7] = (m[2]*m[4] - m[0]*m[6])*r;
+	nm[8] = (m[0]*m[5] - m[1]*m[4])*r;
+    }
+
+    /**
+     * Invert this matrix in place.
+     * @throws ArithmeticException if the matrix is singular
+     */
+    public void invert() {
+	int t = type;
+	invert(rMat, rMat, t);
+	type = t;
+    }
+
+    /**
+     * dst = inverse of src.  dst may be src.
+     * @throws ArithmeticException if src is singular
+     */
+    public static void invert(Matrix3d dst, Matrix3d src) {
+	int t = src.type;
+	invert(dst.rMat, src.rMat, t);
+	dst.type = t;
+    }
+
+    /**
+     * dst = inverse of src, where type is src's matrix type as
+     * returned by classify().  Rigid transforms are inverted by
+     * transposing the rotation; affine ones by a 3x3 inverse.
+     * dst may be src.
+     * @throws ArithmeticException if src is singular
+     */
+    public static void invert(double[] dst, double[] src, int type) {
+	switch (type) {
+	case IDENTITY:
+	    System.arraycopy(iMat, 0, dst, 0, 16);
+	    return;
+	case TRANSLATION:
+	    System.arraycopy(iMat, 0, dst, 0, 12);
+	    dst[12] = -src[12];
+	    dst[13] = -src[13];
+	    dst[14] = -src[14];
+	    dst[15] = 1;
+	    return;
+	case RIGID:
+	case AFFINE:
+	    invertAffine(dst, src, type == RIGID);
+	    return;
+	default:
+	    invertFull(dst, src);
 	}
     }
 
+    /**
+     * p' = p*A + t  =>  p = p'*inv(A) - t*inv(A)
+     */
+    private static void invertAffine(double[] dst, double[] m,
+	boolean rigid)
+    {
+	double a00 = m[0], a01 = m[1], a02 = m[2];
+	double a10 = m[4], a11 = m[5], a12 = m[6];
+	double a20 = m[8], a21 = m[9], a22 = m[10];
+	double t0 = m[12], t1 = m[13], t2 = m[14];
+	double b00, b01, b02, b10, b11, b12, b20, b21, b22;
+	if (rigid) {
+	    b00 = a00; b01 = a10; b02 = a20;
+	    b10 = a01; b11 = a11; b12 = a21;
+	    b20 = a02; b21 = a12; b22 = a22;
+	} else {
+	    // Transposed cofactors over the determinant
+	    double c00 = a11*a22 - a12*a21;
+	    double c01 = a12*a20 - a10*a22;
+	    double c02 = a10*a21 - a11*a20;
+	    double det = a00*c00 + a01*c01 + a02*c02;
+	    if (det == 0)
+		throw new java.lang.ArithmeticException("singular matrix");
+	    double r = 1/det;
+	    b00 = c00*r;
+	    b10 = c01*r;
+	    b20 = c02*r;
+	    b01 = (a02*a21 - a01*a22)*r;
+	    b11 = (a00*a22 - a02*a20)*r;
+	    b21 = (a01*a20 - a00*a21)*r;
+	    b02 = (a01*a12 - a02*a11)*r;
+	    b12 = (a02*a10 - a00*a12)*r;
+	    b22 = (a00*a11 - a01*a10)*r;
+	}
+	dst[0] = b00; dst[1] = b01; dst[2] = b02; dst[3] = 0;
+	dst[4] = b10; dst[5] = b11; dst[6] = b12; dst[7] = 0;
+	dst[8] = b20; dst[9] = b21; dst[10] = b22; dst[11] = 0;
+	dst[12] = -(t0*b00 + t1*b10 + t2*b20);
+	dst[13] = -(t0*b01 + t1*b11 + t2*b21);
+	dst[14] = -(t0*b02 + t1*b12 + t2*b22);
+	dst[15] = 1;
+    }
+
+    /**
+     * General 4x4 inverse by cofactor expansion on 2x2 sub-determinants.
+     */
+    private static void invertFull(double[] dst, double[] m) {
+	double a00 = m[0], a01 = m[1], a02 = m[2], a03 = m[3];
+	double a10 = m[4], a11 = m[5], a12 = m[6], a13 = m[7];
+	double a20 = m[8], a21 = m[9], a22 = m[10], a23 = m[11];
+	double a30 = m[12], a31 = m[13], a32 = m[14], a33 = m[15];
+	double s0 = a00*a11 - a10*a01;
+	double s1 = a00*a12 - a10*a02;
+	double s2 = a00*a13 - a10*a03;
+	double s3 = a01*a12 - a11*a02;
+	double s4 = a01*a13 - a11*a03;
+	double s5 = a02*a13 - a12*a03;
+	double c5 = a22*a33 - a32*a23;
+	double c4 = a21*a33 - a31*a23;
+	double c3 = a21*a32 - a31*a22;
+	double c2 = a20*a33 - a30*a23;
+	double c1 = a20*a32 - a30*a22;
+	double c0 = a20*a31 - a30*a21;
+	double det = s0*c5 - s1*c4 + s2*c3 + s3*c2 - s4*c1 + s5*c0;
+	if (det == 0)
+	    throw new java.lang.ArithmeticException("singular matrix");
+	double r = 1/det;
+	dst[0] = ( a11*c5 - a12*c4 + a13*c3)*r;
+	dst[1] = (-a01*c5 + a02*c4 - a03*c3)*r;
+	dst[2] = ( a31*s5 - a32*s4 + a33*s3)*r;
+	dst[3] = (-a21*s5 + a22*s4 - a23*s3)*r;
+	dst[4] = (-a10*c5 + a12*c2 - a13*c1)*r;
+	dst[5] = ( a00*c5 - a02*c2 + a03*c1)*r;
+	dst[6] = (-a30*s5 + a32*s2 - a33*s1)*r;
+	dst[7] = ( a20*s5 - a22*s2 + a23*s1)*r;
+	dst[8] = ( a10*c4 - a11*c2 + a13*c0)*r;
+	dst[9] = (-a00*c4 + a01*c2 - a03*c0)*r;
+	dst[10] = ( a30*s4 - a31*s2 + a33*s0)*r;
+	dst[11] = (-a20*s4 + a21*s2 - a23*s0)*r;
+	dst[12] = (-a10*c3 + a11*c1 - a12*c0)*r;
+	dst[13] = ( a00*c3 - a01*c1 + a02*c0)*r;
+	dst[14] = (-a30*s3 + a31*s1 - a32*s0)*r;
+	dst[15] = ( a20*s3 - a21*s1 + a22*s0)*r;
+    }
+
     /**
      * Rotate about X; this is a post-multiply, i.e. world
      * coordinates not model coordinates.
      */
     public void rotX(double theta) {
-	//rotX(theta, t2);
-	//matMul(t1, rMat, t2);
+	int t = type;
+	rotateX(rMat, rMat, theta);
+	type = Math.max(t, RIGID);
+    }
+
+    /**
+     * dst = src rotated about X (post-multiply).  dst may be src.
+     */
+    public static void rotateX(double[] dst, double[] src,
+	double theta)
+    {
 	// a b c d  1 0  0 0
 	// e f g h  0 c -s 0
 	// i j k l  0 s  c 0
 	// m n o p  0 0  0 1
 	double c = Math.cos(theta);
 	double s = Math.sin(theta);
-	t1[0] = rMat[0];
-	t1[1] = rMat[1]*c + rMat[2]*s;
-	t1[2] = rMat[1]*-s + rMat[2]*c;
-	t1[3] = rMat[3];
-	t1[4] = rMat[4];
-	t1[5] = rMat[5]*c + rMat[6]*s;
-	t1[6] = rMat[5]*-s + rMat[6]*c;
-	t1[7] = rMat[7];
-	t1[8] = rMat[8];
-	t1[9] = rMat[9]*c + rMat[10]*s;
-	t1[10] = rMat[9]*-s + rMat[10]*c;
-	t1[11] = rMat[11];
-	t1[12] = rMat[12];
-	t1[13] = rMat[13]*c + rMat[14]*s;
-	t1[14] = rMat[13]*-s + rMat[14]*c;
-	t1[15] = rMat[15];
-	double[] tmp = rMat; rMat = t1; t1 = tmp;
+	for (int i = 0; i < 16; i += 4) {
+	    double a = src[i+1], b = src[i+2];
+	    dst[i+1] = a*c + b*s;
+	    dst[i+2] = a*-s + b*c;
+	    dst[i+0] = src[i+0];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * dst = src rotated about X (post-multiply).  dst may be src.
+     */
+    public static void rotateX(Matrix3d dst, Matrix3d src,
+	double theta)
+    {
+	int t = src.type;
+	rotateX(dst.rMat, src.rMat, theta);
+	dst.type = Math.max(t, RIGID);
     }
 
     /**
@@ -131,6 +649,7 @@ public class Matrix3d {
      */
     public static void rotX(double theta, Matrix3d mat) {
 	rotX(theta, mat.rMat);
+	mat.type = RIGID;
     }
 
     /**
@@ -138,40 +657,41 @@ public class Matrix3d {
      * world coordinates, not model coordinates.
      */
     public void rotY(double theta) {
-	// rotY(theta, t2);
-	// matMul(t1, rMat, t2);
-	double c = Math.cos(theta);
-	double s = Math.sin(theta);
+	int t = type;
+	rotateY(rMat, rMat, theta);
+	type = Math.max(t, RIGID);
+    }
+
+    /**
+     * dst = src rotated about Y (post-multiply).  dst may be src.
+     */
+    public static void rotateY(double[] dst, double[] src,
+	double theta)
+    {
 	// a b c d  c 0 s 0
 	// e f g h  0 1 0 0
 	// i j k l -s 0 c 0
 	// m n o p  0 0 0 1
-	//
-	// for( i=0; i<4; ++i ) {
-	//     for( j=0; j<4; ++j ) {
-	// 	float v = 0;
-	// 	for( k=0; k<4; ++k )
-	// 	    v += m1[k+4*j] * m2[i+4*k];
-	// 	dst[i+4*j] = v;
-	//     }
-	// }
-	t1[0] = rMat[0]*c + rMat[2]*-s;
-	t1[1] = rMat[1];
-	t1[2] = rMat[0]*s + rMat[2]*c;
-	t1[3] = rMat[3];
-	t1[4] = rMat[4]*c + rMat[6]*-s;
-	t1[5] = rMat[5];
-	t1[6] = rMat[4]*s + rMat[6]*c;
-	t1[7] = rMat[7];
-	t1[8] = rMat[8]*c + rMat[10]*-s;
-	t1[9] = rMat[9];
-	t1[10] = rMat[8]*s + rMat[10]*c;
-	t1[11] = rMat[11];
-	t1[12] = rMat[12]*c + rMat[14]*-s;
-	t1[13] = rMat[13];
-	t1[14] = rMat[12]*s + rMat[14]*c;
-	t1[15] = rMat[15];
-	double[] tmp = rMat; rMat = t1; t1 = tmp;
+	double c = Math.cos(theta);
+	double s = Math.sin(theta);
+	for (int i = 0; i < 16; i += 4) {
+	    double a = src[i+0], b = src[i+2];
+	    dst[i+0] = a*c + b*-s;
+	    dst[i+2] = a*s + b*c;
+	    dst[i+1] = src[i+1];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * dst = src rotated about Y (post-multiply).  dst may be src.
+     */
+    public static void rotateY(Matrix3d dst, Matrix3d src,
+	double theta)
+    {
+	int t = src.type;
+	rotateY(dst.rMat, src.rMat, theta);
+	dst.type = Math.max(t, RIGID);
     }
 
     /**
@@ -191,6 +711,7 @@ public class Matrix3d {
      */
     public static void rotY(double theta, Matrix3d mat) {
 	rotY(theta, mat.rMat);
+	mat.type = RIGID;
     }
 
     /**
@@ -198,31 +719,41 @@ public class Matrix3d {
      * world coordinates, not model coordinates.
      */
     public void rotZ(double theta) {
-	// rotZ(theta, t2);
-	// matMul(t1, rMat, t2);
+	int t = type;
+	rotateZ(rMat, rMat, theta);
+	type = Math.max(t, RIGID);
+    }
+
+    /**
+     * dst = src rotated about Z (post-multiply).  dst may be src.
+     */
+    public static void rotateZ(double[] dst, double[] src,
+	double theta)
+    {
 	// a b c d  c -s 0 0
 	// e f g h  s  c 0 0
 	// i j k l  0  0 1 0
 	// m n o p  0  0 0 1
 	double c = Math.cos(theta);
 	double s = Math.sin(theta);
-	t1[0] = rMat[0]*c + rMat[1]*s;
-	t1[1] = rMat[0]*-s + rMat[1]*c;
-	t1[2] = rMat[2];
-	t1[3] = rMat[3];
-	t1[4] = rMat[4]*c + rMat[5]*s;
-	t1[5] = rMat[4]*-s + rMat[5]*c;
-	t1[6] = rMat[6];
-	t1[7] = rMat[7];
-	t1[8] = rMat[8]*c + rMat[9]*s;
-	t1[9] = rMat[8]*-s + rMat[9]*c;
-	t1[10] = rMat[10];
-	t1[11] = rMat[11];
-	t1[12] = rMat[12]*c + rMat[13]*s;
-	t1[13] = rMat[12]*-s + rMat[13]*c;
-	t1[14] = rMat[14];
-	t1[15] = rMat[15];
-	double[] tmp = rMat; rMat = t1; t1 = tmp;
+	for (int i = 0; i < 16; i += 4) {
+	    double a = src[i+0], b = src[i+1];
+	    dst[i+0] = a*c + b*s;
+	    dst[i+1] = a*-s + b*c;
+	    dst[i+2] = src[i+2];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * dst = src rotated about Z (post-multiply).  dst may be src.
+     */
+    public static void rotateZ(Matrix3d dst, Matrix3d src,
+	double theta)
+    {
+	int t = src.type;
+	rotateZ(dst.rMat, src.rMat, theta);
+	dst.type = Math.max(t, RIGID);
     }
 
     /**
@@ -242,15 +773,29 @@ public class Matrix3d {
      */
     public static void rotZ(double theta, Matrix3d mat) {
 	rotZ(theta, mat.rMat);
+	mat.type = RIGID;
     }
 
+    /**
+     * dst = m1 * m2, using the cheapest multiply the matrix types
+     * allow.  dst must not be m1 or m2.
+     */
     public static void matMul(Matrix3d dst, Matrix3d m1, Matrix3d m2) {
-	matMul(dst.rMat, m1.rMat, m2.rMat);
+	int t1 = m1.type, t2 = m2.type;
+	if (t1 == IDENTITY)
+	    System.arraycopy(m2.rMat, 0, dst.rMat, 0, 16);
+	else if (t2 == IDENTITY)
+	    System.arraycopy(m1.rMat, 0, dst.rMat, 0, 16);
+	else if (t1 <= AFFINE && t2 <= AFFINE)
+	    matMulNP(dst.rMat, m1.rMat, m2.rMat);
+	else
+	    matMul(dst.rMat, m1.rMat, m2.rMat);
+	dst.type = Math.max(t1, t2);
     }
 
     public static Matrix3d matMul(Matrix3d m1, Matrix3d m2) {
 	Matrix3d rval = new Matrix3d();
-	matMul(rval.rMat, m1.rMat, m2.rMat);
+	matMul(rval, m1, m2);
 	return rval;
     }
 
@@ -259,35 +804,7 @@ public class Matrix3d {
      * dst must not be m1 or m2.
      */
     public static void matMul(double[] dst, double[] m1, double[] m2) {
-	// a b c d  a b c d
-	// e f g h  e f g h
-	// i j k l  i j k l
-	// m n o p  m n o p
-	//
-	// for( i=0; i<4; ++i ) {
-	//     for( j=0; j<4; ++j ) {
-	// 	float v = 0;
-	// 	for( k=0; k<4; ++k )
-	// 	    v += m1[k+4*j] * m2[i+4*k];
-	// 	dst[i+4*j] = v;
-	//     }
-	// }
-	dst[0] = m1[0]*m2[0] + m1[1]*m2[4] + m1[2]*m2[8] + m1[3]*m2[12];
-	dst[1] = m1[0]*m2[1] + m1[1]*m2[5] + m1[2]*m2[9] + m1[3]*m2[13];
-	dst[2] = m1[0]*m2[2] + m1[1]*m2[6] + m1[2]*m2[10] + m1[3]*m2[14];
-	dst[3] = m1[0]*m2[3] + m1[1]*m2[7] + m1[2]*m2[11] + m1[3]*m2[15];
-	dst[4] = m1[4]*m2[0] + m1[5]*m2[4] + m1[6]*m2[8] + m1[7]*m2[12];
-	dst[5] = m1[4]*m2[1] + m1[5]*m2[5] + m1[6]*m2[9] + m1[7]*m2[13];
-	dst[6] = m1[4]*m2[2] + m1[5]*m2[6] + m1[6]*m2[10] + m1[7]*m2[14];
-	dst[7] = m1[4]*m2[3] + m1[5]*m2[7] + m1[6]*m2[11] + m1[7]*m2[15];
-	dst[8] = m1[8]*m2[0] + m1[9]*m2[4] + m1[10]*m2[8] + m1[11]*m2[12];
-	dst[9] = m1[8]*m2[1] + m1[9]*m2[5] + m1[10]*m2[9] + m1[11]*m2[13];
-	dst[10] = m1[8]*m2[2] + m1[9]*m2[6] + m1[10]*m2[10] + m1[11]*m2[14];
-	dst[11] = m1[8]*m2[3] + m1[9]*m2[7] + m1[10]*m2[11] + m1[11]*m2[15];
-	dst[12] = m1[12]*m2[0] + m1[13]*m2[4] + m1[14]*m2[8] + m1[15]*m2[12];
-	dst[13] = m1[12]*m2[1] + m1[13]*m2[5] + m1[14]*m2[9] + m1[15]*m2[13];
-	dst[14] = m1[12]*m2[2] + m1[13]*m2[6] + m1[14]*m2[10] + m1[15]*m2[14];
-	dst[15] = m1[12]*m2[3] + m1[13]*m2[7] + m1[14]*m2[11] + m1[15]*m2[15];
+	kernels.matMul(dst, m1, m2);
     }
 
     /**
@@ -318,15 +835,154 @@ public class Matrix3d {
 	dst[15] = 1;
     }
 
+    /**
+     * Multiply many pairs of 4x4 matrices packed 16 doubles apiece:
+     * dst[k] = m1[k] * m2[k] for k in 0..count-1.  Offsets are in
+     * elements.  dst must not overlap m1 or m2.
+     */
+    public static void matMulBatch(double[] dst, int dstOff,
+	double[] m1, int m1Off, double[] m2, int m2Off, int count)
+    {
+	kernels.matMulBatch(dst, dstOff, m1, m1Off, m2, m2Off, count);
+    }
+
+    /**
+     * True if the Vector API kernels in Matrix3dSimd are in use.
+     */
+    public static boolean isVectorized() {
+	return !(kernels instanceof ScalarKernels);
+    }
+
+    /**
+     * Bulk kernels behind matMul(), matMulBatch(), xform() and
+     * xformSoA().  Implementations must produce bit-identical results
+     * to ScalarKernels, i.e. no fused multiply-add and no reordering.
+     */
+    interface Kernels {
+	void matMul(double[] dst, double[] m1, double[] m2);
+	void matMulBatch(double[] dst, int dstOff,
+	    double[] m1, int m1Off, double[] m2, int m2Off, int count);
+	void xform(double[] m, double[] src, int srcOff,
+	    double[] dst, int dstOff, int count, int stride);
+	void xformSoA(double[] m, double[] xs, double[] ys, double[] zs,
+	    double[] xd, double[] yd, double[] zd, int off, int count);
+    }
+
+    /**
+     * Use Matrix3dSimd if it's been compiled in and the
+     * jdk.incubator.vector module is available, else the scalar code.
+     */
+    static final Kernels kernels = loadKernels();
+
+    private static Kernels loadKernels() {
+	try {
+	    return (Kernels) Class.forName("org.efalk.math.Matrix3dSimd")
+		.getDeclaredConstructor().newInstance();
+	} catch (Throwable t) {
+	    return new ScalarKernels();
+	}
+    }
+
+    static final class ScalarKernels implements Kernels {
+	public void matMul(double[] dst, double[] m1, double[] m2) {
+	    // a b c d  a b c d
+	    // e f g h  e f g h
+	    // i j k l  i j k l
+	    // m n o p  m n o p
+	    //
+	    // for( i=0; i<4; ++i ) {
+	    //     for( j=0; j<4; ++j ) {
+	    // 	float v = 0;
+	    // 	for( k=0; k<4; ++k )
+	    // 	    v += m1[k+4*j] * m2[i+4*k];
+	    // 	dst[i+4*j] = v;
+	    //     }
+	    // }
+	    dst[0] = m1[0]*m2[0] + m1[1]*m2[4] + m1[2]*m2[8] + m1[3]*m2[12];
+	    dst[1] = m1[0]*m2[1] + m1[1]*m2[5] + m1[2]*m2[9] + m1[3]*m2[13];
+	    dst[2] = m1[0]*m2[2] + m1[1]*m2[6] + m1[2]*m2[10] + m1[3]*m2[14];
+	    dst[3] = m1[0]*m2[3] + m1[1]*m2[7] + m1[2]*m2[11] + m1[3]*m2[15];
+	    dst[4] = m1[4]*m2[0] + m1[5]*m2[4] + m1[6]*m2[8] + m1[7]*m2[12];
+	    dst[5] = m1[4]*m2[1] + m1[5]*m2[5] + m1[6]*m2[9] + m1[7]*m2[13];
+	    dst[6] = m1[4]*m2[2] + m1[5]*m2[6] + m1[6]*m2[10] + m1[7]*m2[14];
+	    dst[7] = m1[4]*m2[3] + m1[5]*m2[7] + m1[6]*m2[11] + m1[7]*m2[15];
+	    dst[8] = m1[8]*m2[0] + m1[9]*m2[4] + m1[10]*m2[8] + m1[11]*m2[12];
+	    dst[9] = m1[8]*m2[1] + m1[9]*m2[5] + m1[10]*m2[9] + m1[11]*m2[13];
+	    dst[10] = m1[8]*m2[2] + m1[9]*m2[6] + m1[10]*m2[10] + m1[11]*m2[14];
+	    dst[11] = m1[8]*m2[3] + m1[9]*m2[7] + m1[10]*m2[11] + m1[11]*m2[15];
+	    dst[12] = m1[12]*m2[0] + m1[13]*m2[4] + m1[14]*m2[8] + m1[15]*m2[12];
+	    dst[13] = m1[12]*m2[1] + m1[13]*m2[5] + m1[14]*m2[9] + m1[15]*m2[13];
+	    dst[14] = m1[12]*m2[2] + m1[13]*m2[6] + m1[14]*m2[10] + m1[15]*m2[14];
+	    dst[15] = m1[12]*m2[3] + m1[13]*m2[7] + m1[14]*m2[11] + m1[15]*m2[15];
+	}
+
+	public void matMulBatch(double[] dst, int dstOff,
+	    double[] m1, int m1Off, double[] m2, int m2Off, int count)
+	{
+	    for (int n = 0; n < count; ++n, dstOff += 16, m1Off += 16,
+		    m2Off += 16)
+	    {
+		for (int j = 0; j < 16; j += 4) {
+		    double a = m1[m1Off+j], b = m1[m1Off+j+1];
+		    double c = m1[m1Off+j+2], d = m1[m1Off+j+3];
+		    for (int i = 0; i < 4; ++i)
+			dst[dstOff+j+i] = a*m2[m2Off+i] + b*m2[m2Off+4+i] +
+			    c*m2[m2Off+8+i] + d*m2[m2Off+12+i];
+		}
+	    }
+	}
+
+	public void xform(final double[] m, double[] src, int srcOff,
+	    double[] dst, int dstOff, int count, int stride)
+	{
+	    final double m0 = m[0], m1 = m[1], m2 = m[2];
+	    final double m4 = m[4], m5 = m[5], m6 = m[6];
+	    final double m8 = m[8], m9 = m[9], m10 = m[10];
+	    final double m12 = m[12], m13 = m[13], m14 = m[14];
+	    for (int n=0, i=srcOff, j=dstOff; n<count;
+		    ++n, i+=stride, j+=stride)
+	    {
+		double x = src[i];
+		double y = src[i+1];
+		double z = src[i+2];
+		dst[j]   = x*m0 + y*m4 + z*m8 + m12;
+		dst[j+1] = x*m1 + y*m5 + z*m9 + m13;
+		dst[j+2] = x*m2 + y*m6 + z*m10 + m14;
+	    }
+	}
+
+	public void xformSoA(double[] m, double[] xs, double[] ys,
+	    double[] zs, double[] xd, double[] yd, double[] zd,
+	    int off, int count)
+	{
+	    final double m0 = m[0], m1 = m[1], m2 = m[2];
+	    final double m4 = m[4], m5 = m[5], m6 = m[6];
+	    final double m8 = m[8], m9 = m[9], m10 = m[10];
+	    final double m12 = m[12], m13 = m[13], m14 = m[14];
+	    for (int i = off, end = off + count; i < end; ++i) {
+		double x = xs[i];
+		double y = ys[i];
+		double z = zs[i];
+		xd[i] = x*m0 + y*m4 + z*m8 + m12;
+		yd[i] = x*m1 + y*m5 + z*m9 + m13;
+		zd[i] = x*m2 + y*m6 + z*m10 + m14;
+	    }
+	}
+    }
+
     public void fromQuaternion(float[] q) {
 	float x = q[0], y = q[1], z = q[2], w;
-	if (q.length == 4)
+	int t;
+	if (q.length == 4) {
 	    w = q[3];
-	else {
+	    float mag = x*x + y*y + z*z + w*w;
+	    t = Math.abs(mag - 1) < 1e-5 ? RIGID : AFFINE;
+	} else {
             float mag = x*x + y*y + z*z;
             if (mag > 1)
                 throw new java.lang.ArithmeticException("vector magnitude > 1");
             w = (float)Math.sqrt(1 - mag);
+	    t = RIGID;
 	}
 	rMat[0] = 1 - 2*y*y - 2*z*z;
 	rMat[1] = 2*x*y - 2*z*w;
@@ -344,6 +1000,7 @@ public class Matrix3d {
 	rMat[13] = 0;
 	rMat[14] = 0;
 	rMat[15] = 1;
+	type = t;
     }
 
     public void dump() {
@@ -0,0 +1,242 @@
+// $Id$
+
+/**
+ * Many 3d transformation matrices in one off-heap buffer.
+ */
+
+package org.efalk.math;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * A fixed number of 4x4 matrices stored contiguously in a direct
+ * DoubleBuffer, 16 doubles apiece.  Each matrix has the same element
+ * order as Matrix3d.rMat (translation in elements 12-14), which is the
+ * column-major layout OpenGL and most native math libraries expect, so
+ * buffer() can be handed to native code without a copy.
+ *
+ * Matrices are manipulated through View flyweights.  A View is just an
+ * index into the arena; moveTo() re-points it, so one View can walk the
+ * whole arena without allocating.
+ *
+ * Like Matrix3d, an arena is not thread-safe.  Distinct matrices may be
+ * modified from different threads.
+ */
+public class Matrix3dArena {
+    private final DoubleBuffer buf;
+    private final int capacity;
+
+    /**
+     * Allocate room for capacity matrices, all set to identity.
+     */
+    public Matrix3dArena(int capacity) {
+	this.capacity = capacity;
+	buf = ByteBuffer.allocateDirect(capacity * 16 * 8)
+		.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	for (int i = 0; i < capacity; ++i)
+	    reset(i);
+    }
+
+    /**
+     * Return the number of matrices in this arena.
+     */
+    public int capacity() {
+	return capacity;
+    }
+
+    /**
+     * Return the underlying buffer.  Matrix i starts at element 16*i.
+     * The returned buffer shares content with the arena, but has its
+     * own position and limit.
+     */
+    public DoubleBuffer buffer() {
+	return buf.duplicate();
+    }
+
+    /**
+     * Return a new View of matrix i.
+     */
+    public View view(int i) {
+	return new View(i);
+    }
+
+    /**
+     * Reset matrix i to unity.
+     */
+    public void reset(int i) {
+	int b = i*16;
+	for (int j = 0; j < 16; ++j)
+	    buf.put(b+j, (j % 5) == 0 ? 1 : 0);
+    }
+
+    /**
+     * Copy matrix i into a Matrix3d.
+     */
+    public void get(int i, Matrix3d dst) {
+	get(i, dst.rMat);
+	dst.classify();
+    }
+
+    /**
+     * Copy matrix i into mat[16].
+     */
+    public void get(int i, double[] mat) {
+	int b = i*16;
+	for (int j = 0; j < 16; ++j)
+	    mat[j] = buf.get(b+j);
+    }
+
+    /**
+     * Replace matrix i with the contents of a Matrix3d.
+     */
+    public void set(int i, Matrix3d src) {
+	set(i, src.rMat);
+    }
+
+    /**
+     * Replace matrix i with mat[16].
+     */
+    public void set(int i, double[] mat) {
+	int b = i*16;
+	for (int j = 0; j < 16; ++j)
+	    buf.put(b+j, mat[j]);
+    }
+
+    /**
+     * Rotate matrix i about X; post-multiply, as Matrix3d.rotX().
+     */
+    public void rotX(int i, double theta) {
+	rot(i*16, 1, 2, Math.cos(theta), Math.sin(theta));
+    }
+
+    /**
+     * Rotate matrix i about Y; post-multiply, as Matrix3d.rotY().
+     */
+    public void rotY(int i, double theta) {
+	// Note column order: for Y the sine terms are mirrored
+	rot(i*16, 2, 0, Math.cos(theta), Math.sin(theta));
+    }
+
+    /**
+     * Rotate matrix i about Z; post-multiply, as Matrix3d.rotZ().
+     */
+    public void rotZ(int i, double theta) {
+	rot(i*16, 0, 1, Math.cos(theta), Math.sin(theta));
+    }
+
+    /**
+     * Post-multiply by a rotation in the plane of columns p and q:
+     * col p = p*c + q*s, col q = p*-s + q*c.
+     */
+    private void rot(int b, int p, int q, double c, double s) {
+	for (int r = b; r < b+16; r += 4) {
+	    double a = buf.get(r+p);
+	    double d = buf.get(r+q);
+	    buf.put(r+p, a*c + d*s);
+	    buf.put(r+q, a*-s + d*c);
+	}
+    }
+
+    /**
+     * Full multiply: matrix dst = matrix m1 * matrix m2.
+     * dst must not be m1 or m2.
+     */
+    public void matMul(int dst, int m1, int m2) {
+	int d = dst*16, a = m1*16, b = m2*16;
+	for (int j = 0; j < 16; j += 4) {
+	    double a0 = buf.get(a+j), a1 = buf.get(a+j+1);
+	    double a2 = buf.get(a+j+2), a3 = buf.get(a+j+3);
+	    for (int i = 0; i < 4; ++i)
+		buf.put(d+j+i, a0*buf.get(b+i) + a1*buf.get(b+4+i) +
+		    a2*buf.get(b+8+i) + a3*buf.get(b+12+i));
+	}
+    }
+
+    /**
+     * Transform count vertices by matrix i; see Matrix3d.xform().
+     */
+    public void xform(int i, double[] src, int srcOff, double[] dst,
+	int dstOff, int count, int stride)
+    {
+	int b = i*16;
+	final double m0 = buf.get(b), m1 = buf.get(b+1), m2 = buf.get(b+2);
+	final double m4 = buf.get(b+4), m5 = buf.get(b+5), m6 = buf.get(b+6);
+	final double m8 = buf.get(b+8), m9 = buf.get(b+9);
+	final double m10 = buf.get(b+10);
+	final double m12 = buf.get(b+12), m13 = buf.get(b+13);
+	final double m14 = buf.get(b+14);
+	for(int n=0, s=srcOff, d=dstOff; n<count; ++n, s+=stride, d+=stride) {
+	    double x = src[s];
+	    double y = src[s+1];
+	    double z = src[s+2];
+	    dst[d]   = x*m0 + y*m4 + z*m8 + m12;
+	    dst[d+1] = x*m1 + y*m5 + z*m9 + m13;
+	    dst[d+2] = x*m2 + y*m6 + z*m10 + m14;
+	}
+    }
+
+    /**
+     * Flyweight view of one matrix in the arena, with the same
+     * operations as Matrix3d.
+     */
+    public class View {
+	private int index;
+
+	View(int index) {
+	    this.index = index;
+	}
+
+	/**
+	 * Point this view at matrix i.  Returns this.
+	 */
+	public View moveTo(int i) {
+	    index = i;
+	    return this;
+	}
+
+	public int index() {
+	    return index;
+	}
+
+	public void reset() {
+	    Matrix3dArena.this.reset(index);
+	}
+
+	public void get(Matrix3d dst) {
+	    Matrix3dArena.this.get(index, dst);
+	}
+
+	public void set(Matrix3d src) {
+	    Matrix3dArena.this.set(index, src);
+	}
+
+	public void rotX(double theta) {
+	    Matrix3dArena.this.rotX(index, theta);
+	}
+
+	public void rotY(double theta) {
+	    Matrix3dArena.this.rotY(index, theta);
+	}
+
+	public void rotZ(double theta) {
+	    Matrix3dArena.this.rotZ(index, theta);
+	}
+
+	/**
+	 * this = m1 * m2.  All three must be in this arena, and this
+	 * must not be m1 or m2.
+	 */
+	public void matMul(View m1, View m2) {
+	    Matrix3dArena.this.matMul(index, m1.index, m2.index);
+	}
+
+	public void xform(double[] src, int srcOff, double[] dst,
+	    int dstOff, int count, int stride)
+	{
+	    Matrix3dArena.this.xform(index, src, srcOff, dst, dstOff,
+		count, stride);
+	}
+    }
+}
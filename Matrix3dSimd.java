@@ -0,0 +1,114 @@
+// $Id$
+
+/**
+ * Vector API kernels for Matrix3d.
+ */
+
+package org.efalk.math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the Matrix3d bulk kernels, built on
+ * jdk.incubator.vector.  Matrix3d picks this class up by name at
+ * class-load time; it's optional.  Leave this file out of builds that
+ * can't use the module (e.g. Android), and compile and run with
+ *	--add-modules jdk.incubator.vector
+ * otherwise.
+ *
+ * A 4x4 matrix row is exactly one 256-bit vector of doubles, so the
+ * matrix multiply and AoS transform use SPECIES_256.  The SoA transform
+ * uses the widest species the hardware prefers.  Every kernel does its
+ * multiplies and adds in the same order as Matrix3d.ScalarKernels, so
+ * results are bit-identical.
+ */
+final class Matrix3dSimd implements Matrix3d.Kernels {
+    private static final VectorSpecies<Double> S4 = DoubleVector.SPECIES_256;
+    private static final VectorSpecies<Double> SP =
+	DoubleVector.SPECIES_PREFERRED;
+    private static final VectorMask<Double> XYZ =
+	VectorMask.fromLong(S4, 0x7);
+
+    public Matrix3dSimd() {
+	// Without at least 256-bit vectors the row kernels are emulated,
+	// which is slower than the scalar code.  Refuse, and Matrix3d
+	// will fall back.
+	if (SP.length() < 4)
+	    throw new UnsupportedOperationException("vectors too narrow");
+    }
+
+    public void matMul(double[] dst, double[] m1, double[] m2) {
+	matMulBatch(dst, 0, m1, 0, m2, 0, 1);
+    }
+
+    public void matMulBatch(double[] dst, int dstOff,
+	double[] m1, int m1Off, double[] m2, int m2Off, int count)
+    {
+	for (int n = 0; n < count; ++n, dstOff += 16, m1Off += 16,
+		m2Off += 16)
+	{
+	    DoubleVector r0 = DoubleVector.fromArray(S4, m2, m2Off);
+	    DoubleVector r1 = DoubleVector.fromArray(S4, m2, m2Off+4);
+	    DoubleVector r2 = DoubleVector.fromArray(S4, m2, m2Off+8);
+	    DoubleVector r3 = DoubleVector.fromArray(S4, m2, m2Off+12);
+	    for (int j = 0; j < 16; j += 4) {
+		r0.mul(m1[m1Off+j])
+		    .add(r1.mul(m1[m1Off+j+1]))
+		    .add(r2.mul(m1[m1Off+j+2]))
+		    .add(r3.mul(m1[m1Off+j+3]))
+		    .intoArray(dst, dstOff+j);
+	    }
+	}
+    }
+
+    public void xform(double[] m, double[] src, int srcOff,
+	double[] dst, int dstOff, int count, int stride)
+    {
+	// Lane 3 of each row is the perspective column, which xform()
+	// ignores; it's computed and masked off on the store.
+	DoubleVector r0 = DoubleVector.fromArray(S4, m, 0);
+	DoubleVector r1 = DoubleVector.fromArray(S4, m, 4);
+	DoubleVector r2 = DoubleVector.fromArray(S4, m, 8);
+	DoubleVector r3 = DoubleVector.fromArray(S4, m, 12);
+	for (int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=stride, j+=stride) {
+	    r0.mul(src[i])
+		.add(r1.mul(src[i+1]))
+		.add(r2.mul(src[i+2]))
+		.add(r3)
+		.intoArray(dst, j, XYZ);
+	}
+    }
+
+    public void xformSoA(double[] m, double[] xs, double[] ys, double[] zs,
+	double[] xd, double[] yd, double[] zd, int off, int count)
+    {
+	final double m0 = m[0], m1 = m[1], m2 = m[2];
+	final double m4 = m[4], m5 = m[5], m6 = m[6];
+	final double m8 = m[8], m9 = m[9], m10 = m[10];
+	final double m12 = m[12], m13 = m[13], m14 = m[14];
+	final int end = off + count;
+	final int vend = off + SP.loopBound(count);
+	int i = off;
+	for (; i < vend; i += SP.length()) {
+	    DoubleVector x = DoubleVector.fromArray(SP, xs, i);
+	    DoubleVector y = DoubleVector.fromArray(SP, ys, i);
+	    DoubleVector z = DoubleVector.fromArray(SP, zs, i);
+	    x.mul(m0).add(y.mul(m4)).add(z.mul(m8)).add(m12)
+		.intoArray(xd, i);
+	    x.mul(m1).add(y.mul(m5)).add(z.mul(m9)).add(m13)
+		.intoArray(yd, i);
+	    x.mul(m2).add(y.mul(m6)).add(z.mul(m10)).add(m14)
+		.intoArray(zd, i);
+	}
+	for (; i < end; ++i) {
+	    double x = xs[i];
+	    double y = ys[i];
+	    double z = zs[i];
+	    xd[i] = x*m0 + y*m4 + z*m8 + m12;
+	    yd[i] = x*m1 + y*m5 + z*m9 + m13;
+	    zd[i] = x*m2 + y*m6 + z*m10 + m14;
+	}
+    }
+}
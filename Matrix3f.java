@@ -0,0 +1,424 @@
+// $Id$
+
+/**
+ * 3d transformation matrices, single precision.
+ */
+
+package org.efalk.math;
+
+import java.lang.Math;
+
+import android.util.Log;
+
+/**
+ * Single-precision twin of Matrix3d, for float vertex data and GPU
+ * upload where widening to double and back is wasted work.  Same
+ * element layout and the same methods; see Matrix3d for details.
+ */
+public class Matrix3f {
+    private static final String TAG = "FlightDeck";
+    private static final float[] iMat = {1,0,0,0, 0,1,0,0, 0,0,1,0, 0,0,0,1};
+    public float[] rMat = new float[16];
+
+    public Matrix3f() {
+	reset();
+    }
+
+    public Matrix3f(Matrix3d m) {
+	set(m);
+    }
+
+    /**
+     * Reset transform to unity
+     */
+    public void reset() {
+	System.arraycopy(iMat, 0, rMat, 0, 16);
+    }
+
+    /**
+     * Return the current transformation matrix.
+     * Note: this returns a reference to the internal matrix, which
+     * could theoretically be modified by the caller, affecting
+     * the internal value.
+     */
+    public float[] getMat() {
+	return rMat;
+    }
+
+    /**
+     * Replace the current transformation matrix.
+     * Note: this copies a reference to the original matrix, which
+     * could theoretically be modified by the caller, affecting
+     * the internal value.
+     */
+    public void setMat(float[] rMat) {
+	this.rMat = rMat;
+    }
+
+    /**
+     * Replace the current transformation matrix
+     */
+    public void setMat(double[] mat) {
+	for( int i = 0; i < 16; ++i )
+	    rMat[i] = (float) mat[i];
+    }
+
+    /**
+     * Copy a Matrix3d into this matrix, narrowing to float.
+     */
+    public void set(Matrix3d m) {
+	setMat(m.rMat);
+    }
+
+    /**
+     * Return a new Matrix3d with the same value.
+     */
+    public Matrix3d toMatrix3d() {
+	Matrix3d rval = new Matrix3d();
+	rval.setMat(rMat);
+	return rval;
+    }
+
+    /**
+     * Transform the 3d vertices contained in this array.
+     * Dst and src may be the same.
+     */
+    public void xform(float[] src, float[] dst) {
+	xform(src, 0, dst, 0, src.length/3, 3);
+    }
+
+    /**
+     * Transform count vertices from an interleaved array.
+     * See Matrix3d.xform(double[], int, double[], int, int, int)
+     */
+    public void xform(float[] src, int srcOff, float[] dst, int dstOff,
+	int count, int stride)
+    {
+	final float[] m = rMat;
+	final float m0 = m[0], m1 = m[1], m2 = m[2];
+	final float m4 = m[4], m5 = m[5], m6 = m[6];
+	final float m8 = m[8], m9 = m[9], m10 = m[10];
+	final float m12 = m[12], m13 = m[13], m14 = m[14];
+	for(int n=0, i=srcOff, j=dstOff; n<count; ++n, i+=stride, j+=stride) {
+	    float x = src[i];
+	    float y = src[i+1];
+	    float z = src[i+2];
+	    dst[j]   = x*m0 + y*m4 + z*m8 + m12;
+	    dst[j+1] = x*m1 + y*m5 + z*m9 + m13;
+	    dst[j+2] = x*m2 + y*m6 + z*m10 + m14;
+	}
+    }
+
+    /**
+     * Transform count interleaved vertices, positions and normals both.
+     * See Matrix3d.xform(double[], int, double[], int, int, int, int)
+     * @throws ArithmeticException if the upper 3x3 is singular
+     */
+    public void xform(float[] src, int srcOff, float[] dst, int dstOff,
+	int count, int stride, int normOff)
+    {
+	// The normal matrix, as normalMatrix() makes it, in locals
+	final float[] m = rMat;
+	float c00 = m[5]*m[10] - m[6]*m[9];
+	float c01 = m[6]*m[8] - m[4]*m[10];
+	float c02 = m[4]*m[9] - m[5]*m[8];
+	float det = m[0]*c00 + m[1]*c01 + m[2]*c02;
+	if (det == 0)
+	    throw new java.lang.ArithmeticException("singular matrix");
+	float r = 1/det;
+	final float n0 = c00*r, n1 = c01*r, n2 = c02*r;
+	final float n3 = (m[2]*m[9] - m[1]*m[10])*r;
+	final float n4 = (m[0]*m[10] - m[2]*m[8])*r;
+	final float n5 = (m[1]*m[8] - m[0]*m[9])*r;
+	final float n6 = (m[1]*m[6] - m[2]*m[5])*r;
+	final float n7 = (m[2]*m[4] - m[0]*m[6])*r;
+	final float n8 = (m[0]*m[5] - m[1]*m[4])*r;
+	xform(src, srcOff, dst, dstOff, count, stride);
+	for(int n=0, i=srcOff+normOff, j=dstOff+normOff; n<count;
+		++n, i+=stride, j+=stride)
+	{
+	    float x = src[i];
+	    float y = src[i+1];
+	    float z = src[i+2];
+	    dst[j]   = x*n0 + y*n3 + z*n6;
+	    dst[j+1] = x*n1 + y*n4 + z*n7;
+	    dst[j+2] = x*n2 + y*n5 + z*n8;
+	}
+    }
+
+    /**
+     * Compute the normal matrix (inverse-transpose of the upper 3x3)
+     * into nm[9].  See Matrix3d.normalMatrix()
+     * @throws ArithmeticException if the upper 3x3 is singular
+     */
+    public void normalMatrix(float[] nm) {
+	final float[] m = rMat;
+	float c00 = m[5]*m[10] - m[6]*m[9];
+	float c01 = m[6]*m[8] - m[4]*m[10];
+	float c02 = m[4]*m[9] - m[5]*m[8];
+	float det = m[0]*c00 + m[1]*c01 + m[2]*c02;
+	if (det == 0)
+	    throw new java.lang.ArithmeticException("singular matrix");
+	float r = 1/det;
+	nm[0] = c00*r;
+	nm[1] = c01*r;
+	nm[2] = c02*r;
+	nm[3] = (m[2]*m[9] - m[1]*m[10])*r;
+	nm[4] = (m[0]*m[10] - m[2]*m[8])*r;
+	nm[5] = (m[1]*m[8] - m[0]*m[9])*r;
+	nm[6] = (m[1]*m[6] - m[2]*m[5])*r;
+	nm[7] = (m[2]*m[4] - m[0]*m[6])*r;
+	nm[8] = (m[0]*m[5] - m[1]*m[4])*r;
+    }
+
+    /**
+     * Rotate about X; this is a post-multiply, i.e. world
+     * coordinates not model coordinates.
+     */
+    public void rotX(double theta) {
+	rotateX(rMat, rMat, theta);
+    }
+
+    /**
+     * dst = src rotated about X (post-multiply).  dst may be src.
+     */
+    public static void rotateX(float[] dst, float[] src, double theta) {
+	// a b c d  1 0  0 0
+	// e f g h  0 c -s 0
+	// i j k l  0 s  c 0
+	// m n o p  0 0  0 1
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	for (int i = 0; i < 16; i += 4) {
+	    float a = src[i+1], b = src[i+2];
+	    dst[i+1] = a*c + b*s;
+	    dst[i+2] = a*-s + b*c;
+	    dst[i+0] = src[i+0];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * Compute rotation matrix about X.
+     */
+    public static void rotX(double theta, float[] mat) {
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	mat[0] = 1; mat[1] = 0; mat[2] = 0; mat[3] = 0;
+	mat[4] = 0; mat[5] = c; mat[6] = -s; mat[7] = 0;
+	mat[8] = 0; mat[9] = s; mat[10] = c; mat[11] = 0;
+	mat[12] = 0; mat[13] = 0; mat[14] = 0; mat[15] = 1;
+    }
+
+    /**
+     * Compute rotation matrix about X
+     */
+    public static void rotX(double theta, Matrix3f mat) {
+	rotX(theta, mat.rMat);
+    }
+
+    /**
+     * Rotate about Y.  This is a post-multiply, i.e.
+     * world coordinates, not model coordinates.
+     */
+    public void rotY(double theta) {
+	rotateY(rMat, rMat, theta);
+    }
+
+    /**
+     * dst = src rotated about Y (post-multiply).  dst may be src.
+     */
+    public static void rotateY(float[] dst, float[] src, double theta) {
+	// a b c d  c 0 s 0
+	// e f g h  0 1 0 0
+	// i j k l -s 0 c 0
+	// m n o p  0 0 0 1
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	for (int i = 0; i < 16; i += 4) {
+	    float a = src[i+0], b = src[i+2];
+	    dst[i+0] = a*c + b*-s;
+	    dst[i+2] = a*s + b*c;
+	    dst[i+1] = src[i+1];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * Compute rotation matrix aboutY
+     */
+    public static void rotY(double theta, float[] mat) {
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	mat[0] = c; mat[1] = 0; mat[2] = s; mat[3] = 0;
+	mat[4] = 0; mat[5] = 1; mat[6] = 0; mat[7] = 0;
+	mat[8] = -s; mat[9] = 0; mat[10] = c; mat[11] = 0;
+	mat[12] = 0; mat[13] = 0; mat[14] = 0; mat[15] = 1;
+    }
+
+    /**
+     * Compute rotation matrix about Y
+     */
+    public static void rotY(double theta, Matrix3f mat) {
+	rotY(theta, mat.rMat);
+    }
+
+    /**
+     * Rotate about Z.  This is a post-multiply, i.e.
+     * world coordinates, not model coordinates.
+     */
+    public void rotZ(double theta) {
+	rotateZ(rMat, rMat, theta);
+    }
+
+    /**
+     * dst = src rotated about Z (post-multiply).  dst may be src.
+     */
+    public static void rotateZ(float[] dst, float[] src, double theta) {
+	// a b c d  c -s 0 0
+	// e f g h  s  c 0 0
+	// i j k l  0  0 1 0
+	// m n o p  0  0 0 1
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	for (int i = 0; i < 16; i += 4) {
+	    float a = src[i+0], b = src[i+1];
+	    dst[i+0] = a*c + b*s;
+	    dst[i+1] = a*-s + b*c;
+	    dst[i+2] = src[i+2];
+	    dst[i+3] = src[i+3];
+	}
+    }
+
+    /**
+     * Compute rotation matrix about Z
+     */
+    public static void rotZ(double theta, float[] mat) {
+	float c = (float)Math.cos(theta);
+	float s = (float)Math.sin(theta);
+	mat[0] = c; mat[1] = -s; mat[2] = 0; mat[3] = 0;
+	mat[4] = s; mat[5] = c; mat[6] = 0; mat[7] = 0;
+	mat[8] = 0; mat[9] = 0; mat[10] = 1; mat[11] = 0;
+	mat[12] = 0; mat[13] = 0; mat[14] = 0; mat[15] = 1;
+    }
+
+    /**
+     * Compute rotation matrix about Z
+     */
+    public static void rotZ(double theta, Matrix3f mat) {
+	rotZ(theta, mat.rMat);
+    }
+
+    public static void matMul(Matrix3f dst, Matrix3f m1, Matrix3f m2) {
+	matMul(dst.rMat, m1.rMat, m2.rMat);
+    }
+
+    public static Matrix3f matMul(Matrix3f m1, Matrix3f m2) {
+	Matrix3f rval = new Matrix3f();
+	matMul(rval.rMat, m1.rMat, m2.rMat);
+	return rval;
+    }
+
+    /**
+     * Full multiply of two 4x4 matrices.
+     * dst must not be m1 or m2.
+     */
+    public static void matMul(float[] dst, float[] m1, float[] m2) {
+	// a b c d  a b c d
+	// e f g h  e f g h
+	// i j k l  i j k l
+	// m n o p  m n o p
+	//
+	// for( i=0; i<4; ++i ) {
+	//     for( j=0; j<4; ++j ) {
+	// 	float v = 0;
+	// 	for( k=0; k<4; ++k )
+	// 	    v += m1[k+4*j] * m2[i+4*k];
+	// 	dst[i+4*j] = v;
+	//     }
+	// }
+	dst[0] = m1[0]*m2[0] + m1[1]*m2[4] + m1[2]*m2[8] + m1[3]*m2[12];
+	dst[1] = m1[0]*m2[1] + m1[1]*m2[5] + m1[2]*m2[9] + m1[3]*m2[13];
+	dst[2] = m1[0]*m2[2] + m1[1]*m2[6] + m1[2]*m2[10] + m1[3]*m2[14];
+	dst[3] = m1[0]*m2[3] + m1[1]*m2[7] + m1[2]*m2[11] + m1[3]*m2[15];
+	dst[4] = m1[4]*m2[0] + m1[5]*m2[4] + m1[6]*m2[8] + m1[7]*m2[12];
+	dst[5] = m1[4]*m2[1] + m1[5]*m2[5] + m1[6]*m2[9] + m1[7]*m2[13];
+	dst[6] = m1[4]*m2[2] + m1[5]*m2[6] + m1[6]*m2[10] + m1[7]*m2[14];
+	dst[7] = m1[4]*m2[3] + m1[5]*m2[7] + m1[6]*m2[11] + m1[7]*m2[15];
+	dst[8] = m1[8]*m2[0] + m1[9]*m2[4] + m1[10]*m2[8] + m1[11]*m2[12];
+	dst[9] = m1[8]*m2[1] + m1[9]*m2[5] + m1[10]*m2[9] + m1[11]*m2[13];
+	dst[10] = m1[8]*m2[2] + m1[9]*m2[6] + m1[10]*m2[10] + m1[11]*m2[14];
+	dst[11] = m1[8]*m2[3] + m1[9]*m2[7] + m1[10]*m2[11] + m1[11]*m2[15];
+	dst[12] = m1[12]*m2[0] + m1[13]*m2[4] + m1[14]*m2[8] + m1[15]*m2[12];
+	dst[13] = m1[12]*m2[1] + m1[13]*m2[5] + m1[14]*m2[9] + m1[15]*m2[13];
+	dst[14] = m1[12]*m2[2] + m1[13]*m2[6] + m1[14]*m2[10] + m1[15]*m2[14];
+	dst[15] = m1[12]*m2[3] + m1[13]*m2[7] + m1[14]*m2[11] + m1[15]*m2[15];
+    }
+
+    /**
+     * Multiply of two 4x4 matrices when we know certain values are zero
+     * or one (no perspective).
+     * dst must not be m1 or m2.
+     */
+    public static void matMulNP(float[] dst, float[] m1, float[] m2) {
+	// a b c 0  a b c 0
+	// e f g 0  e f g 0
+	// i j k 0  i j k 0
+	// m n o 1  m n o 1
+	dst[0] = m1[0]*m2[0] + m1[1]*m2[4] + m1[2]*m2[8];
+	dst[1] = m1[0]*m2[1] + m1[1]*m2[5] + m1[2]*m2[9];
+	dst[2] = m1[0]*m2[2] + m1[1]*m2[6] + m1[2]*m2[10];
+	dst[3] = 0;
+	dst[4] = m1[4]*m2[0] + m1[5]*m2[4] + m1[6]*m2[8];
+	dst[5] = m1[4]*m2[1] + m1[5]*m2[5] + m1[6]*m2[9];
+	dst[6] = m1[4]*m2[2] + m1[5]*m2[6] + m1[6]*m2[10];
+	dst[7] = 0;
+	dst[8] = m1[8]*m2[0] + m1[9]*m2[4] + m1[10]*m2[8];
+	dst[9] = m1[8]*m2[1] + m1[9]*m2[5] + m1[10]*m2[9];
+	dst[10] = m1[8]*m2[2] + m1[9]*m2[6] + m1[10]*m2[10];
+	dst[11] = 0;
+	dst[12] = m1[12]*m2[0] + m1[13]*m2[4] + m1[14]*m2[8] + m2[12];
+	dst[13] = m1[12]*m2[1] + m1[13]*m2[5] + m1[14]*m2[9] + m2[13];
+	dst[14] = m1[12]*m2[2] + m1[13]*m2[6] + m1[14]*m2[10] + m2[14];
+	dst[15] = 1;
+    }
+
+    public void fromQuaternion(float[] q) {
+	float x = q[0], y = q[1], z = q[2], w;
+	if (q.length == 4)
+	    w = q[3];
+	else {
+            float mag = x*x + y*y + z*z;
+            if (mag > 1)
+                throw new java.lang.ArithmeticException("vector magnitude > 1");
+            w = (float)Math.sqrt(1 - mag);
+	}
+	rMat[0] = 1 - 2*y*y - 2*z*z;
+	rMat[1] = 2*x*y - 2*z*w;
+	rMat[2] = 2*x*z + 2*y*w;
+	rMat[3] = 0;
+	rMat[4] = 2*x*y + 2*z*w;
+	rMat[5] = 1 - 2*x*x - 2*z*z;
+	rMat[6] = 2*y*z - 2*x*w;
+	rMat[7] = 0;
+	rMat[8] = 2*x*z - 2*y*w;
+	rMat[9] = 2*y*z + 2*x*w;
+	rMat[10] = 1 - 2*x*x - 2*y*y;
+	rMat[11] = 0;
+	rMat[12] = 0;
+	rMat[13] = 0;
+	rMat[14] = 0;
+	rMat[15] = 1;
+    }
+
+    public void dump() {
+	Log.d(TAG, String.format("  %5.2f  %5.2f  %5.2f  %5.2f",
+		rMat[0], rMat[1], rMat[2], rMat[3]));
+	Log.d(TAG, String.format("  %5.2f  %5.2f  %5.2f  %5.2f",
+		rMat[4], rMat[5], rMat[6], rMat[7]));
+	Log.d(TAG, String.format("  %5.2f  %5.2f  %5.2f  %5.2f",
+		rMat[8], rMat[9], rMat[10], rMat[11]));
+	Log.d(TAG, String.format("  %5.2f  %5.2f  %5.2f  %5.2f",
+		rMat[12], rMat[13], rMat[14], rMat[15]));
+    }
+}
@@ -1,20 +1,28 @@
-
 package org.efalk.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentProducer;
 
 /**
  * Utility class that lets you post multipart/form-data using
- * EntityTemplate.
+ * EntityTemplate, or better, MultiPartProducer.Entity, which knows
+ * its length.
  * See http://www.ietf.org/rfc/rfc2388.txt and
  * http://www.ietf.org/rfc/rfc2046.txt
  */
@@ -23,6 +31,8 @@ public class MultiPartProducer implements ContentProducer {
     //private final File file;
     private final byte[] sep;
     private final List<MultiPartPair> parts;
+    private byte[][] headers;		// per part, built on first use
+    private byte[] trailer;
     private static final byte[] crlf = {0xd, 0xa};
     private static final byte[] dashes = "--".getBytes();
     private static final byte[] dispos =
@@ -31,20 +41,60 @@ public class MultiPartProducer implements ContentProducer {
     private static final byte[] disposEnd = "\"\r\n".getBytes();
     private static final byte[] octetStream =
 	"Content-Type: application/octet-stream\r\n".getBytes();
+    private static final int MIN_BUFFER = 16*1024;
+    private static final int MAX_BUFFER = 1024*1024;
 
+    /**
+     * One form field.  value is one of:
+     *	String		sent as text
+     *	File, Path	sent as a file upload
+     *	byte[]		sent as binary data
+     *	ByteBuffer	the bytes between position and limit, which are
+     *			left unchanged
+     *	InputStream	read to the end, once; give its length if known
+     * A File may also be given with an offset and length, to send just
+     * that range of it, e.g. one chunk of a large upload.
+     * Anything else is sent as its toString().
+     */
     public static class MultiPartPair {
 	public final String name;	// form field name
-	public final Object value;	// Either String or File
-	public final String filename;	// for file only
+	public final Object value;
+	public final String filename;	// for binary values, may be null
+	public final long offset;	// File range start
+	public final long length;	// InputStream or range length, or -1
 	public MultiPartPair(String name, Object value) {
+	    this(name, value, null);
+	}
+	public MultiPartPair(String name, Object value, String filename) {
 	    this.name = name;
 	    this.value = value;
-	    this.filename = null;
+	    this.filename = filename;
+	    this.offset = 0;
+	    this.length = -1;
 	}
-	public MultiPartPair(String name, Object value, String filename) {
+	public MultiPartPair(String name, InputStream value, String filename,
+	    long length)
+	{
 	    this.name = name;
 	    this.value = value;
 	    this.filename = filename;
+	    this.offset = 0;
+	    this.length = length;
+	}
+	public MultiPartPair(String name, File value, String filename,
+	    long offset, long length)
+	{
+	    this.name = name;
+	    this.value = value;
+	    this.filename = filename;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	boolean isBinary() {
+	    return value instanceof File || value instanceof Path ||
+		value instanceof byte[] || value instanceof ByteBuffer ||
+		value instanceof InputStream;
 	}
     }
 
@@ -59,62 +109,282 @@ public class MultiPartProducer implements ContentProducer {
 	parts.add(new MultiPartPair(name, file));
     }
 
+    /**
+     * Return the exact length of the body, or -1 if some part is an
+     * InputStream of unknown length.
+     */
+    public long getContentLength() throws IOException {
+	long total = trailer().length;
+	for (int i = 0; i < parts.size(); ++i) {
+	    long n = bodyLength(parts.get(i));
+	    if (n < 0)
+		return -1;
+	    total += header(i).length + n + crlf.length;
+	}
+	return total;
+    }
+
+    /**
+     * True if the body can be written more than once, i.e. no part
+     * is an InputStream.
+     */
+    public boolean isRepeatable() {
+	for (MultiPartPair pair : parts)
+	    if (pair.value instanceof InputStream)
+		return false;
+	return true;
+    }
+
+    private static long bodyLength(MultiPartPair pair) throws IOException {
+	Object v = pair.value;
+	if (v instanceof File)
+	    return pair.length >= 0 ? pair.length : ((File) v).length();
+	if (v instanceof Path) return Files.size((Path) v);
+	if (v instanceof byte[]) return ((byte[]) v).length;
+	if (v instanceof ByteBuffer) return ((ByteBuffer) v).remaining();
+	if (v instanceof InputStream) return pair.length;
+	return v.toString().getBytes().length;
+    }
+
+    /**
+     * Write the whole body.  File contents go straight from the file
+     * to output, in large reads sized to the file, with no extra
+     * buffering; if output is a FileOutputStream they are moved by
+     * FileChannel.transferTo() instead.  Closes output.
+     */
     public void writeTo(OutputStream output) throws IOException {
-	BufferedOutputStream os = new BufferedOutputStream(output);
-	for (MultiPartPair pair : parts) {
-	    writeSep(os, false);
-	    if (pair.value instanceof File) {
-		// File
-		File file = (File) pair.value;
-		os.write(dispos);
-		os.write(pair.name.getBytes());
-		os.write(dispFile);
-		if (pair.filename != null)
-		    os.write(pair.filename.getBytes());
-		else
-		    os.write(file.getName().getBytes());
-		os.write(disposEnd);
-		os.write(octetStream);
-		os.write(crlf);
-		BufferedInputStream is = new BufferedInputStream(
-					    new FileInputStream(file));
-		byte[] buffer = new byte[2048];
+	if (output instanceof FileOutputStream) {
+	    try {
+		writeTo(((FileOutputStream) output).getChannel());
+	    } finally {
+		output.close();
+	    }
+	    return;
+	}
+	byte[] buffer = null;
+	for (int p = 0; p < parts.size(); ++p) {
+	    MultiPartPair pair = parts.get(p);
+	    Object v = pair.value;
+	    output.write(header(p));
+	    if (v instanceof byte[]) {
+		output.write((byte[]) v);
+	    } else if (v instanceof ByteBuffer && ((ByteBuffer) v).hasArray()) {
+		ByteBuffer bb = (ByteBuffer) v;
+		output.write(bb.array(), bb.arrayOffset() + bb.position(),
+		    bb.remaining());
+	    } else if (pair.isBinary()) {
+		long len = bodyLength(pair);
+		int size = bufferSize(len < 0 ? MAX_BUFFER * 8L : len);
+		if (buffer == null || buffer.length < size)
+		    buffer = new byte[size];
+		copy(pair, output, buffer);
+	    } else {
+		output.write(v.toString().getBytes());
+	    }
+	    output.write(crlf);
+	}
+	output.write(trailer());
+	output.close();
+    }
+
+    /**
+     * Copy a File, Path, direct ByteBuffer or InputStream part.
+     */
+    private static void copy(MultiPartPair pair, OutputStream output,
+	byte[] buffer) throws IOException
+    {
+	Object v = pair.value;
+	if (v instanceof ByteBuffer) {
+	    ByteBuffer bb = ((ByteBuffer) v).duplicate();
+	    while (bb.hasRemaining()) {
+		int n = Math.min(bb.remaining(), buffer.length);
+		bb.get(buffer, 0, n);
+		output.write(buffer, 0, n);
+	    }
+	    return;
+	}
+	if (v instanceof File && pair.length >= 0) {
+	    FileChannel fc = new FileInputStream((File) v).getChannel();
+	    try {
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long pos = pair.offset, end = pair.offset + pair.length;
+		while (pos < end) {
+		    bb.clear().limit((int) Math.min(buffer.length, end - pos));
+		    int n = fc.read(bb, pos);
+		    if (n < 0)
+			throw new IOException("file shrank during upload");
+		    output.write(buffer, 0, n);
+		    pos += n;
+		}
+	    } finally {
+		fc.close();
+	    }
+	    return;
+	}
+	InputStream is = v instanceof File ? new FileInputStream((File) v)
+		       : v instanceof Path ? Files.newInputStream((Path) v)
+		       : (InputStream) v;
+	long total = 0;
+	try {
+	    int i;
+	    while ((i = is.read(buffer)) > 0) {
+		output.write(buffer, 0, i);
+		total += i;
+	    }
+	} finally {
+	    is.close();
+	}
+	checkLength(pair, total);
+    }
+
+    /**
+     * Write the whole body to a channel.  File contents are moved with
+     * FileChannel.transferTo(), which for a file or socket channel lets
+     * the kernel copy them without passing through Java at all.  Does
+     * not close the channel.
+     */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+	for (int p = 0; p < parts.size(); ++p) {
+	    MultiPartPair pair = parts.get(p);
+	    Object v = pair.value;
+	    writeFully(ch, ByteBuffer.wrap(header(p)));
+	    if (v instanceof File || v instanceof Path) {
+		FileChannel fc = v instanceof File
+		    ? new FileInputStream((File) v).getChannel()
+		    : FileChannel.open((Path) v, StandardOpenOption.READ);
+		try {
+		    if (pair.length >= 0)
+			transfer(fc, pair.offset, pair.length, ch);
+		    else
+			transfer(fc, 0, fc.size(), ch);
+		} finally {
+		    fc.close();
+		}
+	    } else if (v instanceof byte[]) {
+		writeFully(ch, ByteBuffer.wrap((byte[]) v));
+	    } else if (v instanceof ByteBuffer) {
+		writeFully(ch, ((ByteBuffer) v).duplicate());
+	    } else if (v instanceof InputStream) {
+		InputStream is = (InputStream) v;
+		byte[] buffer = new byte[bufferSize(
+		    pair.length < 0 ? MAX_BUFFER * 8L : pair.length)];
+		long total = 0;
 		int i;
-		while ((i = is.read(buffer)) > 0)
-		    os.write(buffer, 0, i);
-		is.close();
-		os.write(crlf);
+		try {
+		    while ((i = is.read(buffer)) > 0) {
+			writeFully(ch, ByteBuffer.wrap(buffer, 0, i));
+			total += i;
+		    }
+		} finally {
+		    is.close();
+		}
+		checkLength(pair, total);
 	    } else {
-		// Ordinary string
-		os.write(dispos);
-		os.write(pair.name.getBytes());
-		os.write(disposEnd);
-		os.write(crlf);
-		os.write(pair.value.toString().getBytes());
-		os.write(crlf);
+		writeFully(ch, ByteBuffer.wrap(v.toString().getBytes()));
 	    }
+	    writeFully(ch, ByteBuffer.wrap(crlf));
 	}
-	writeSep(os, true);
-	/*
-	os.write("Content-Disposition: form-data; name=\"".getBytes());
-	os.write(name.getBytes());
-	os.write("\"; filename=\"".getBytes());
-	os.write(filename.getBytes());
-	os.write("\"\r\n".getBytes());
-	os.write("Content-Type: application/octet-stream\r\n".getBytes());
-	os.write(crlf);
-	while ((i = is.read(buffer)) > 0)
-	    os.write(buffer, 0, i);
-	os.write(crlf);
-	os.write(dashes);
-	os.write(sep);
-	os.write(dashes);
+	writeFully(ch, ByteBuffer.wrap(trailer()));
+    }
+
+    /**
+     * A stream shorter or longer than declared would make the
+     * Content-Length a lie; fail rather than send a corrupt request.
+     */
+    private static void checkLength(MultiPartPair pair, long total)
+	throws IOException
+    {
+	if (pair.value instanceof InputStream && pair.length >= 0 &&
+		total != pair.length)
+	    throw new IOException("part \"" + pair.name + "\": expected " +
+		pair.length + " bytes, got " + total);
+    }
+
+    /**
+     * Copy length bytes of fc, from pos, to ch.  transferTo() may move
+     * less than asked, or nothing for some channels; then copy by hand.
+     */
+    private static void transfer(FileChannel fc, long pos, long length,
+	WritableByteChannel ch) throws IOException
+    {
+	long end = pos + length;
+	ByteBuffer buf = null;
+	while (pos < end) {
+	    long n = fc.transferTo(pos, end - pos, ch);
+	    if (n > 0) {
+		pos += n;
+		continue;
+	    }
+	    if (buf == null)
+		buf = ByteBuffer.allocate(bufferSize(end - pos));
+	    buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+	    int r = fc.read(buf, pos);
+	    if (r < 0)
+		throw new IOException("file shrank during upload");
+	    buf.flip();
+	    writeFully(ch, buf);
+	    pos += r;
+	}
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer buf)
+	throws IOException
+    {
+	while (buf.hasRemaining())
+	    ch.write(buf);
+    }
+
+    /**
+     * Copy buffer size for a file of the given length: an eighth of
+     * it, rounded down to a power of two, between 16K and 1M.  Big
+     * files get big reads; small ones don't waste memory.
+     */
+    static int bufferSize(long length) {
+	long n = Long.highestOneBit(Math.max(length / 8, 1));
+	return (int) Math.max(MIN_BUFFER, Math.min(n, MAX_BUFFER));
+    }
+
+    /**
+     * Separator and headers for part i, ready to write.  Built once
+     * and kept, since getContentLength() and each write need them.
+     */
+    private synchronized byte[] header(int i) throws IOException {
+	if (headers == null)
+	    headers = new byte[parts.size()][];
+	if (headers[i] != null)
+	    return headers[i];
+	MultiPartPair pair = parts.get(i);
+	ByteArrayOutputStream os = new ByteArrayOutputStream(128);
+	writeSep(os, false);
+	os.write(dispos);
+	os.write(pair.name.getBytes());
+	String filename = pair.filename;
+	if (filename == null && pair.value instanceof File)
+	    filename = ((File) pair.value).getName();
+	if (filename == null && pair.value instanceof Path)
+	    filename = ((Path) pair.value).getFileName().toString();
+	if (filename != null) {
+	    os.write(dispFile);
+	    os.write(filename.getBytes());
+	}
+	os.write(disposEnd);
+	if (pair.isBinary())
+	    os.write(octetStream);
 	os.write(crlf);
-	is.close();
-	*/
-	os.close();
+	return headers[i] = os.toByteArray();
     }
-    private void writeSep(BufferedOutputStream os, boolean last)
+
+    private synchronized byte[] trailer() throws IOException {
+	if (trailer == null) {
+	    ByteArrayOutputStream os =
+		new ByteArrayOutputStream(sep.length + 6);
+	    writeSep(os, true);
+	    trailer = os.toByteArray();
+	}
+	return trailer;
+    }
+
+    private void writeSep(OutputStream os, boolean last)
       throws IOException
     {
 	os.write(dashes);
@@ -122,4 +392,44 @@ public class MultiPartProducer implements ContentProducer {
 	if (last) os.write(dashes);
 	os.write(crlf);
     }
+
+    /**
+     * HttpEntity for a multipart body.  Unlike EntityTemplate it
+     * reports the exact Content-Length when every part's size is
+     * known, so the request need not be chunked.
+     */
+    public static class Entity extends AbstractHttpEntity {
+	private final MultiPartProducer producer;
+	private final long length;
+
+	public Entity(String sep, List<MultiPartPair> parts)
+	    throws IOException
+	{
+	    producer = new MultiPartProducer(sep, parts);
+	    length = producer.getContentLength();
+	    setContentType("multipart/form-data; boundary=" + sep);
+	    setChunked(length < 0);
+	}
+
+	public long getContentLength() {
+	    return length;
+	}
+
+	public boolean isRepeatable() {
+	    return producer.isRepeatable();
+	}
+
+	public boolean isStreaming() {
+	    return !producer.isRepeatable();
+	}
+
+	public InputStream getContent() {
+	    throw new UnsupportedOperationException(
+		"multipart entity can only be written");
+	}
+
+	public void writeTo(OutputStream output) throws IOException {
+	    producer.writeTo(output);
+	}
+    }
 }
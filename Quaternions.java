@@ -0,0 +1,249 @@
+// $Id$
+
+/**
+ * Bulk quaternion operations, for skeletal animation and the like.
+ */
+
+package org.efalk.math;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Static methods that work on many quaternions at once.  Quaternions
+ * are packed x,y,z,w, four elements apiece; matrices are packed 16
+ * elements apiece in Matrix3d.rMat layout.  Nothing here allocates
+ * except the fork-join tasks of the parallel versions.
+ *
+ * Typical use, once per frame:
+ *	Quaternions.interpolate(keyA, keyB, t, true, boneMats, nBones);
+ */
+public final class Quaternions {
+
+    private Quaternions() { }
+
+    /**
+     * Spherical linear interpolation between two keyframe arrays:
+     * dst[i] = slerp(q0[i], q1[i], t) for count quaternions.
+     * dst may be q0 or q1.
+     */
+    public static void slerp(float[] q0, float[] q1, float t,
+	float[] dst, int count)
+    {
+	blend(q0, q1, t, true, dst, null, 0, count);
+    }
+
+    /**
+     * Normalized linear interpolation; cheaper than slerp and close
+     * enough for small angles between keyframes.
+     * dst may be q0 or q1.
+     */
+    public static void nlerp(float[] q0, float[] q1, float t,
+	float[] dst, int count)
+    {
+	blend(q0, q1, t, false, dst, null, 0, count);
+    }
+
+    /**
+     * Interpolate between two keyframe arrays, slerp or nlerp, and
+     * write the results straight out as rotation matrices.
+     */
+    public static void interpolate(float[] q0, float[] q1, float t,
+	boolean slerp, double[] mats, int count)
+    {
+	blend(q0, q1, t, slerp, null, mats, 0, count);
+    }
+
+    /**
+     * Interpolate between two keyframe arrays, slerp or nlerp, writing
+     * quaternions into dst.
+     */
+    public static void interpolate(float[] q0, float[] q1, float t,
+	boolean slerp, float[] dst, int count)
+    {
+	blend(q0, q1, t, slerp, dst, null, 0, count);
+    }
+
+    /**
+     * Same as interpolate(), but large arrays are split across the
+     * fork-join common pool.  See Matrix3d.setParallelism().
+     */
+    public static void interpolateParallel(float[] q0, float[] q1, float t,
+	boolean slerp, double[] mats, int count)
+    {
+	if (count < Matrix3d.parallelThreshold)
+	    blend(q0, q1, t, slerp, null, mats, 0, count);
+	else
+	    ForkJoinPool.commonPool().invoke(
+		new BlendTask(q0, q1, t, slerp, null, mats, 0, count));
+    }
+
+    public static void interpolateParallel(float[] q0, float[] q1, float t,
+	boolean slerp, float[] dst, int count)
+    {
+	if (count < Matrix3d.parallelThreshold)
+	    blend(q0, q1, t, slerp, dst, null, 0, count);
+	else
+	    ForkJoinPool.commonPool().invoke(
+		new BlendTask(q0, q1, t, slerp, dst, null, 0, count));
+    }
+
+    /**
+     * Convert count unit quaternions, starting at q[qOff], into rotation
+     * matrices starting at mats[mOff].  Same matrix as
+     * Matrix3d.fromQuaternion(), but no sqrt: w must be supplied.
+     */
+    public static void toMatrices(float[] q, int qOff, double[] mats,
+	int mOff, int count)
+    {
+	for (int n = 0; n < count; ++n, qOff += 4, mOff += 16)
+	    toMatrix(q[qOff], q[qOff+1], q[qOff+2], q[qOff+3], mats, mOff);
+    }
+
+    public static void toMatrices(double[] q, int qOff, double[] mats,
+	int mOff, int count)
+    {
+	for (int n = 0; n < count; ++n, qOff += 4, mOff += 16)
+	    toMatrix(q[qOff], q[qOff+1], q[qOff+2], q[qOff+3], mats, mOff);
+    }
+
+    /**
+     * Float matrices, e.g. for direct GPU upload.
+     */
+    public static void toMatrices(float[] q, int qOff, float[] mats,
+	int mOff, int count)
+    {
+	for (int n = 0; n < count; ++n, qOff += 4, mOff += 16) {
+	    float x = q[qOff], y = q[qOff+1], z = q[qOff+2], w = q[qOff+3];
+	    float xx = x*x, yy = y*y, zz = z*z;
+	    float xy = x*y, xz = x*z, yz = y*z;
+	    float xw = x*w, yw = y*w, zw = z*w;
+	    float[] m = mats;
+	    int o = mOff;
+	    m[o] = 1 - 2*(yy + zz);
+	    m[o+1] = 2*(xy - zw);
+	    m[o+2] = 2*(xz + yw);
+	    m[o+3] = 0;
+	    m[o+4] = 2*(xy + zw);
+	    m[o+5] = 1 - 2*(xx + zz);
+	    m[o+6] = 2*(yz - xw);
+	    m[o+7] = 0;
+	    m[o+8] = 2*(xz - yw);
+	    m[o+9] = 2*(yz + xw);
+	    m[o+10] = 1 - 2*(xx + yy);
+	    m[o+11] = 0;
+	    m[o+12] = 0;
+	    m[o+13] = 0;
+	    m[o+14] = 0;
+	    m[o+15] = 1;
+	}
+    }
+
+    /**
+     * Write the rotation matrix for unit quaternion x,y,z,w into
+     * m[off..off+15].
+     */
+    public static void toMatrix(double x, double y, double z, double w,
+	double[] m, int off)
+    {
+	double xx = x*x, yy = y*y, zz = z*z;
+	double xy = x*y, xz = x*z, yz = y*z;
+	double xw = x*w, yw = y*w, zw = z*w;
+	m[off] = 1 - 2*(yy + zz);
+	m[off+1] = 2*(xy - zw);
+	m[off+2] = 2*(xz + yw);
+	m[off+3] = 0;
+	m[off+4] = 2*(xy + zw);
+	m[off+5] = 1 - 2*(xx + zz);
+	m[off+6] = 2*(yz - xw);
+	m[off+7] = 0;
+	m[off+8] = 2*(xz - yw);
+	m[off+9] = 2*(yz + xw);
+	m[off+10] = 1 - 2*(xx + yy);
+	m[off+11] = 0;
+	m[off+12] = 0;
+	m[off+13] = 0;
+	m[off+14] = 0;
+	m[off+15] = 1;
+    }
+
+    /**
+     * Interpolate quaternions from..to-1.  Results go to qd as
+     * quaternions if it is non-null, and to md as matrices if it is
+     * non-null.  Always takes the short way around.
+     */
+    private static void blend(float[] q0, float[] q1, float t,
+	boolean slerp, float[] qd, double[] md, int from, int to)
+    {
+	for (int i = from; i < to; ++i) {
+	    int k = i*4;
+	    double ax = q0[k], ay = q0[k+1], az = q0[k+2], aw = q0[k+3];
+	    double bx = q1[k], by = q1[k+1], bz = q1[k+2], bw = q1[k+3];
+	    double dot = ax*bx + ay*by + az*bz + aw*bw;
+	    if (dot < 0) {
+		dot = -dot;
+		bx = -bx; by = -by; bz = -bz; bw = -bw;
+	    }
+	    double s0, s1;
+	    boolean norm;
+	    if (slerp && dot < 0.9995) {
+		double theta = Math.acos(dot);
+		double r = 1/Math.sin(theta);
+		s0 = Math.sin((1-t)*theta) * r;
+		s1 = Math.sin(t*theta) * r;
+		norm = false;
+	    } else {
+		// nlerp, or slerp so close to linear it doesn't matter
+		s0 = 1-t;
+		s1 = t;
+		norm = true;
+	    }
+	    double x = ax*s0 + bx*s1;
+	    double y = ay*s0 + by*s1;
+	    double z = az*s0 + bz*s1;
+	    double w = aw*s0 + bw*s1;
+	    if (norm) {
+		double r = 1/Math.sqrt(x*x + y*y + z*z + w*w);
+		x *= r; y *= r; z *= r; w *= r;
+	    }
+	    if (qd != null) {
+		qd[k] = (float) x;
+		qd[k+1] = (float) y;
+		qd[k+2] = (float) z;
+		qd[k+3] = (float) w;
+	    }
+	    if (md != null)
+		toMatrix(x, y, z, w, md, i*16);
+	}
+    }
+
+    private static class BlendTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final float[] q0, q1, qd;
+	private final double[] md;
+	private final float t;
+	private final boolean slerp;
+	private final int from, to;
+
+	BlendTask(float[] q0, float[] q1, float t, boolean slerp,
+	    float[] qd, double[] md, int from, int to)
+	{
+	    this.q0 = q0; this.q1 = q1;
+	    this.t = t;
+	    this.slerp = slerp;
+	    this.qd = qd; this.md = md;
+	    this.from = from; this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from <= Matrix3d.parallelChunk) {
+		blend(q0, q1, t, slerp, qd, md, from, to);
+		return;
+	    }
+	    int mid = (from + to) >>> 1;
+	    invokeAll(new BlendTask(q0, q1, t, slerp, qd, md, from, mid),
+		new BlendTask(q0, q1, t, slerp, qd, md, mid, to));
+	}
+    }
+}
@@ -0,0 +1,302 @@
+// $Id$
+
+/**
+ * Parallel, resumable ranged downloads for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+
+import android.util.Log;
+
+/**
+ * Downloads a url into a file as byte ranges fetched several at once,
+ * each over its own pooled connection, so a transfer limited by the
+ * bandwidth of one connection goes several times as fast.
+ *
+ * A HEAD request finds the size, whether the server takes Range
+ * requests, and the ETag or Last-Modified.  The file is then set to
+ * its full size and each range, a GET answered with 206, is written
+ * in place with positional FileChannel writes, so ranges can finish in
+ * any order without seeking or locking.  A server without ranges, or
+ * without a Content-Length, gets one plain GET instead.
+ *
+ *	RangedDownload dl = new RangedDownload(web, url, dest,
+ *	    new File(dest.getPath() + ".ranges"));
+ *	dl.download();
+ *
+ * The journal is a header line (size, range size, validator) followed
+ * by a bitmap of the ranges written; a range's bit is set only after
+ * its data has been forced to disk.  After a failure or a crash,
+ * download() fetches only the ranges not marked.  Range requests carry
+ * If-Range, so if the resource has changed the server sends 200; that,
+ * or a server that ignores Range after all, makes download() drop the
+ * journal and fetch the whole file again with one plain GET.  A 206
+ * is written only if its Content-Range is exactly the range asked for;
+ * one with a different total, or none, is taken the same way as a 200,
+ * and one with the wrong bytes fails the range.  The journal is
+ * deleted when done.
+ *
+ * Ranges run on the WebHelper's executor, so a WebPolicy, WebMetrics
+ * and the pool limits apply to each of them, and are retried as
+ * ChunkTransfer describes.  One download() at a time.
+ */
+class RangedDownload extends ChunkTransfer {
+    private static final String TAG = "RangedDownload";
+    private static final String MAGIC = "RangedDownload 1";
+
+    private final String mUrl;
+    private final File mFile;
+    private final File mJournal;
+    private String mValidator;
+    private FileChannel mChannel;
+    private long mSize;
+    private RandomAccessFile mLog;
+    private long mLogStart;
+
+    /**
+     * @param url      what to download
+     * @param file     where to put it
+     * @param journal  range bitmap for resuming; null to start from
+     *                 scratch every time
+     */
+    public RangedDownload(WebHelper web, String url, File file,
+	File journal)
+    {
+	super(web, TAG);
+	mUrl = url;
+	mFile = file;
+	mJournal = journal;
+    }
+
+    /**
+     * Fetch whatever the file does not have yet.  On failure the
+     * journal is kept and calling download() again resumes.
+     * @return size of the file
+     * @throws WebError
+     */
+    public long download() throws WebHelper.WebError {
+	HttpHead head = new HttpHead(mUrl);
+	head.setHeader("Accept-Encoding", "identity");
+	HttpResponse resp = mWeb.get(head);
+	Header ranges = resp.getFirstHeader("Accept-Ranges");
+	Header len = resp.getFirstHeader("Content-Length");
+	Header etag = resp.getFirstHeader("ETag");
+	if (etag == null || etag.getValue().startsWith("W/"))
+	    etag = resp.getFirstHeader("Last-Modified");
+	WebHelper.consume(resp);
+	long size = -1;
+	try {
+	    if (len != null) size = Long.parseLong(len.getValue().trim());
+	} catch (NumberFormatException e) {
+	}
+	if (ranges == null || !ranges.getValue().contains("bytes") ||
+	    size <= 0)
+	    return downloadWhole();
+
+	mValidator = etag == null ? "" : etag.getValue();
+	mChunks = (int) ((size + mChunkSize - 1) / mChunkSize);
+	mFailure = null;
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+	    try {
+		openJournal(size, raf.length() == size);
+		raf.setLength(size);
+		mChannel = raf.getChannel();
+		mSize = size;
+		runChunks();
+	    } finally {
+		synchronized (mDone) {
+		    if (mLog != null) mLog.close();
+		    mLog = null;
+		}
+		raf.close();
+	    }
+	} catch (IOException e) {
+	    Log.e(TAG, "IO exception: " + e);
+	    throw new WebHelper.WebError(503, "Exception: " + e);
+	}
+	if (mFailure != null) {
+	    if (mFailure.status != HttpStatus.SC_PRECONDITION_FAILED)
+		throw mFailure;
+	    Log.w(TAG, mUrl + ": " + mFailure.getMessage() +
+		", fetching it whole");
+	    if (mJournal != null)
+		mJournal.delete();
+	    return downloadWhole();
+	}
+	if (mJournal != null)
+	    mJournal.delete();
+	return size;
+    }
+
+    /**
+     * No ranges: one GET, straight into the file.
+     */
+    private long downloadWhole() throws WebHelper.WebError {
+	mChunks = 0;
+	mDone = null;
+	final FileChannel fc;
+	try {
+	    fc = new FileOutputStream(mFile).getChannel();
+	} catch (IOException e) {
+	    Log.e(TAG, "IO exception: " + e);
+	    throw new WebHelper.WebError(503, "Exception: " + e);
+	}
+	try {
+	    return mWeb.stream(new HttpGet(mUrl),
+		new WebHelper.ChunkHandler() {
+		    public void chunk(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining())
+			    fc.write(buf);
+		    }
+		});
+	} finally {
+	    try {
+		fc.close();
+	    } catch (IOException e) {
+	    }
+	}
+    }
+
+    /**
+     * Fetch one range into place and force it to disk.
+     */
+    protected void transfer(int index) throws WebHelper.WebError {
+	final FileChannel fc = mChannel;
+	final long offset = index * mChunkSize;
+	final long end = Math.min(offset + mChunkSize, mSize);
+	HttpGet req = new HttpGet(mUrl);
+	req.setHeader("Accept-Encoding", "identity");
+	req.setHeader("Range", "bytes=" + offset + "-" + (end - 1));
+	if (!mValidator.isEmpty())
+	    req.setHeader("If-Range", mValidator);
+	HttpResponse resp = mWeb.execute(req);
+	int status = resp.getStatusLine().getStatusCode();
+	if (status == HttpStatus.SC_OK) {
+	    // the whole resource; don't read it just to discard it
+	    req.abort();
+	    throw new WebHelper.WebError(HttpStatus.SC_PRECONDITION_FAILED,
+		"Resource changed, or range ignored");
+	}
+	if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+	    WebHelper.consume(resp);
+	    throw new WebHelper.WebError(resp);
+	}
+	String range = checkRange(resp, offset, end);
+	if (range != null) {
+	    // not the bytes asked for; write none of them
+	    req.abort();
+	    throw new WebHelper.WebError(range.endsWith("/" + mSize) ?
+		HttpStatus.SC_BAD_GATEWAY :
+		HttpStatus.SC_PRECONDITION_FAILED,
+		"Range " + index + ": got Content-Range " + range);
+	}
+	final long[] pos = { offset };
+	WebHelper.stream(resp, new WebHelper.ChunkHandler() {
+	    public void chunk(ByteBuffer buf) throws IOException {
+		if (pos[0] + buf.remaining() > end)
+		    throw new IOException("range too long");
+		while (buf.hasRemaining())
+		    pos[0] += fc.write(buf, pos[0]);
+	    }
+	});
+	if (pos[0] != end)
+	    throw new WebHelper.WebError(503, "Short range " + index);
+	try {
+	    fc.force(false);
+	} catch (IOException e) {
+	    Log.e(TAG, "IO exception: " + e);
+	    throw new WebHelper.WebError(503, "Exception: " + e);
+	}
+    }
+
+    /**
+     * Check that a 206 is for bytes offset to end-1 of a resource of
+     * mSize bytes.
+     * @return null if so, else the Content-Range received
+     */
+    private String checkRange(HttpResponse resp, long offset, long end) {
+	Header h = resp.getFirstHeader("Content-Range");
+	if (h == null)
+	    return "(none)";
+	String v = h.getValue().trim();
+	try {
+	    int dash = v.indexOf('-'), slash = v.indexOf('/');
+	    if (v.startsWith("bytes ") && dash > 0 && slash > dash &&
+		Long.parseLong(v.substring(6, dash).trim()) == offset &&
+		Long.parseLong(v.substring(dash + 1, slash).trim()) ==
+		    end - 1 &&
+		Long.parseLong(v.substring(slash + 1).trim()) == mSize)
+		return null;
+	} catch (NumberFormatException e) {
+	}
+	return v;
+    }
+
+    /**
+     * Read the journal, if it matches this resource and range size and
+     * the file is still there, and keep it open for marking ranges;
+     * otherwise start a new one.
+     */
+    private void openJournal(long size, boolean haveFile)
+	throws IOException
+    {
+	String header = MAGIC + " " + size + " " + mChunkSize + " " +
+	    mValidator.replace('\n', ' ');
+	int nbytes = (mChunks + 7) / 8;
+	mDone = new BitSet(mChunks);
+	if (mJournal == null)
+	    return;
+	mLog = new RandomAccessFile(mJournal, "rw");
+	String line = mLog.readLine();
+	if (haveFile && header.equals(line) &&
+	    mLog.length() == mLog.getFilePointer() + nbytes)
+	{
+	    mLogStart = mLog.getFilePointer();
+	    byte[] bits = new byte[nbytes];
+	    mLog.readFully(bits);
+	    mDone = BitSet.valueOf(bits);
+	    mDone.clear(mChunks, nbytes * 8);
+	    return;
+	}
+	byte[] h = (header + "\n").getBytes("ISO-8859-1");
+	mLogStart = h.length;
+	mLog.setLength(0);
+	mLog.write(h);
+	mLog.write(new byte[nbytes]);
+    }
+
+    /**
+     * Mark a range done, rewriting its byte of the bitmap.
+     */
+    protected void done(int index) {
+	synchronized (mDone) {
+	    mDone.set(index);
+	    if (mLog == null) return;
+	    int b = 0, base = index & ~7;
+	    for (int i = 0; i < 8; ++i)
+		if (mDone.get(base + i)) b |= 1 << i;
+	    try {
+		mLog.seek(mLogStart + index / 8);
+		mLog.write(b);
+	    } catch (IOException e) {
+		// the range is still written; at worst it is fetched again
+		Log.w(TAG, "Journal: " + e);
+	    }
+	}
+    }
+}
@@ -0,0 +1,208 @@
+// $Id$
+
+/**
+ * Scene-graph style hierarchy of transforms.
+ */
+
+package org.efalk.math;
+
+import java.util.Arrays;
+
+/**
+ * A tree of transforms.  Each node has a local Matrix3d relative to its
+ * parent; update() recomputes world matrices, but only for nodes whose
+ * local transform, or some ancestor's, changed since the last update.
+ *
+ * Nodes are numbered in the order they are added, and a node's parent
+ * must already exist, so every parent comes before its children.  The
+ * numbers are also the nodes' places in the world array, so the tree
+ * never reorders them; add nodes level by level (breadth-first) and
+ * siblings end up adjacent in memory.  World matrices are packed into
+ * one array, 16 doubles per node in Matrix3d.rMat layout, ready for
+ * bulk upload.
+ *
+ * markDirty() keeps a list of the nodes changed, so update() touches
+ * only those nodes and their descendants; a tree that hasn't changed
+ * costs nothing to update.
+ *
+ * Not thread-safe.
+ */
+public class TransformTree {
+    private int size;
+    private int[] parent;
+    private Matrix3d[] local;
+    private int[] firstChild;	// -1 if none
+    private int[] nextSibling;	// -1 if none
+    private boolean[] dirty;
+    private int[] dirtyList;	// nodes marked since the last update
+    private int nDirty;
+    private int[] stack;
+    private int[] worldType;
+    private double[] world;
+
+    public TransformTree() {
+	this(16);
+    }
+
+    /**
+     * @param capacity  initial number of nodes; grows as needed
+     */
+    public TransformTree(int capacity) {
+	capacity = Math.max(capacity, 1);
+	parent = new int[capacity];
+	local = new Matrix3d[capacity];
+	firstChild = new int[capacity];
+	nextSibling = new int[capacity];
+	dirty = new boolean[capacity];
+	dirtyList = new int[capacity];
+	stack = new int[capacity];
+	worldType = new int[capacity];
+	world = new double[capacity*16];
+    }
+
+    /**
+     * Add a node with an identity local transform.
+     * @param parentNode  index of the parent, or -1 for a root
+     * @return index of the new node
+     */
+    public int add(int parentNode) {
+	if (parentNode < -1 || parentNode >= size)
+	    throw new IndexOutOfBoundsException("parent " + parentNode);
+	if (size == parent.length)
+	    grow();
+	int i = size++;
+	parent[i] = parentNode;
+	firstChild[i] = -1;
+	nextSibling[i] = -1;
+	if (parentNode >= 0) {
+	    nextSibling[i] = firstChild[parentNode];
+	    firstChild[parentNode] = i;
+	}
+	local[i] = new Matrix3d();
+	markDirty(i);
+	return i;
+    }
+
+    /**
+     * Return the number of nodes.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Return the parent of the given node, or -1.
+     */
+    public int getParent(int node) {
+	return parent[node];
+    }
+
+    /**
+     * Return the local transform of the given node.  If you modify
+     * it, call markDirty(node), and if you write its rMat directly,
+     * call classify() on it as well.
+     */
+    public Matrix3d local(int node) {
+	return local[node];
+    }
+
+    /**
+     * Copy m into the local transform of the given node.
+     */
+    public void setLocal(int node, Matrix3d m) {
+	local[node].set(m);
+	markDirty(node);
+    }
+
+    /**
+     * Note that the given node's local transform has changed.  Its
+     * world matrix and those of all its descendants will be recomputed
+     * by the next update().
+     */
+    public void markDirty(int node) {
+	if (dirty[node])
+	    return;
+	dirty[node] = true;
+	dirtyList[nDirty++] = node;
+    }
+
+    /**
+     * Recompute world matrices for dirty nodes and their descendants.
+     * @return the number of world matrices recomputed
+     */
+    public int update() {
+	// parents have lower numbers, so in this order an ancestor's
+	// subtree is done before any dirty node inside it comes up
+	Arrays.sort(dirtyList, 0, nDirty);
+	int count = 0;
+	for (int d = 0; d < nDirty; ++d) {
+	    int top = dirtyList[d];
+	    if (!dirty[top])
+		continue;		// done with an ancestor
+	    int sp = 0;
+	    stack[sp++] = top;
+	    while (sp > 0) {
+		int i = stack[--sp];
+		compute(i);
+		dirty[i] = false;
+		++count;
+		for (int c = firstChild[i]; c >= 0; c = nextSibling[c])
+		    stack[sp++] = c;
+	    }
+	}
+	nDirty = 0;
+	return count;
+    }
+
+    /**
+     * Recompute the world matrix of node i from its parent's.
+     */
+    private void compute(int i) {
+	int p = parent[i];
+	Matrix3d m = local[i];
+	int o = i*16;
+	if (p < 0) {
+	    System.arraycopy(m.rMat, 0, world, o, 16);
+	    worldType[i] = m.getType();
+	} else if (m.getType() == Matrix3d.IDENTITY) {
+	    System.arraycopy(world, p*16, world, o, 16);
+	    worldType[i] = worldType[p];
+	} else if (worldType[p] == Matrix3d.IDENTITY) {
+	    System.arraycopy(m.rMat, 0, world, o, 16);
+	    worldType[i] = m.getType();
+	} else {
+	    Matrix3d.matMulBatch(world, o, m.rMat, 0, world, p*16, 1);
+	    worldType[i] = Math.max(m.getType(), worldType[p]);
+	}
+    }
+
+    /**
+     * Return the packed world matrices; node i starts at element 16*i.
+     * Valid after update().  This is the internal array, and may be
+     * replaced when nodes are added.
+     */
+    public double[] worldMatrices() {
+	return world;
+    }
+
+    /**
+     * Copy the world matrix of the given node into dst.
+     */
+    public void getWorld(int node, Matrix3d dst) {
+	System.arraycopy(world, node*16, dst.rMat, 0, 16);
+	dst.classify();
+    }
+
+    private void grow() {
+	int n = parent.length * 2;
+	parent = Arrays.copyOf(parent, n);
+	local = Arrays.copyOf(local, n);
+	firstChild = Arrays.copyOf(firstChild, n);
+	nextSibling = Arrays.copyOf(nextSibling, n);
+	dirty = Arrays.copyOf(dirty, n);
+	dirtyList = Arrays.copyOf(dirtyList, n);
+	stack = new int[n];
+	worldType = Arrays.copyOf(worldType, n);
+	world = Arrays.copyOf(world, n*16);
+    }
+}
@@ -10,6 +10,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.Closeable;
 
 import android.util.Log;
@@ -57,6 +58,30 @@ public final class Util {
 	return sb.toString();
     }
 
+    /**
+     * Read a string from an InputStream, decoding with the named
+     * charset (platform default if null).  Unlike the above, line
+     * endings are kept as they are.  sizeHint, if positive, is the
+     * expected length in bytes.
+     */
+    public static String inputStreamAsString(InputStream s, String charset,
+	long sizeHint) throws IOException
+    {
+	Reader rd = charset == null ? new InputStreamReader(s)
+				    : new InputStreamReader(s, charset);
+	StringBuilder sb = new StringBuilder(
+	    sizeHint > 0 ? (int) Math.min(sizeHint, 1<<24) : 8192);
+	char[] buf = new char[8192];
+	int n;
+	try {
+	    while ((n = rd.read(buf)) > 0)
+		sb.append(buf, 0, n);
+	} finally {
+	    rd.close();
+	}
+	return sb.toString();
+    }
+
     /**
      * Closes 'closeable', ignoring any checked exceptions.
      * Does nothing if 'closeable' is null.
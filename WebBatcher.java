@@ -0,0 +1,239 @@
+// $Id$
+
+/**
+ * Batching of many small getArgs() queries for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects getArgs() queries against one url and, given a Codec for
+ * the server's batch API, sends them in batches of one request each:
+ * a batch goes out when it reaches maxBatch queries, or windowMs after
+ * its first query, whichever is first.  Each caller gets its own
+ * future, completed with that query's body as a string.
+ *
+ *	batcher.setCodec(new WebBatcher.Codec() {
+ *	    public String join(List<String> args) { ... }
+ *	    public List<String> split(String body, int n) { ... }
+ *	});
+ *
+ * Without a Codec, the default, each query is sent at once as its own
+ * request over the shared pool of keep-alive connections (see
+ * WebHelper.setPoolLimits()), so there is no connection setup and the
+ * round trips overlap.  Holding such queries back would only add the
+ * window to their latency: the Apache client speaks neither HTTP/2
+ * nor pipelining, so they could not share a request anyway.
+ *
+ * Requests run on the WebHelper's executor.  Thread-safe.
+ */
+class WebBatcher {
+    private final WebHelper mWeb;
+    private final String mUrl;
+    private final int mMaxBatch;
+    private final long mWindowMs;
+    private Codec mCodec = null;
+    private List<Pending> mPending;
+    private ScheduledFuture<?> mTimer = null;
+    private boolean mClosed = false;
+
+    private static ScheduledExecutorService sTimer = null;
+
+    /**
+     * Merges a batch of queries into one request, and splits the
+     * response back into one result per query.
+     */
+    public interface Codec {
+	/**
+	 * Return the argument string for one request that performs
+	 * all of the given queries.
+	 */
+	String join(List<String> args);
+
+	/**
+	 * Split the response body into n results, in query order.
+	 */
+	List<String> split(String body, int n) throws WebHelper.WebError;
+    }
+
+    private static class Pending {
+	final String args;
+	final CompletableFuture<String> future =
+	    new CompletableFuture<String>();
+
+	Pending(String args) {
+	    this.args = args;
+	}
+    }
+
+    /**
+     * Batch queries against web's default url.
+     * @param maxBatch  send as soon as this many queries are waiting
+     * @param windowMs  send this long after the first query of a batch
+     */
+    public WebBatcher(WebHelper web, int maxBatch, long windowMs) {
+	this(web, web.getDefUrl(), maxBatch, windowMs);
+    }
+
+    /**
+     * Batch queries against the given url.
+     */
+    public WebBatcher(WebHelper web, String url, int maxBatch,
+	long windowMs)
+    {
+	mWeb = web;
+	mUrl = url;
+	mMaxBatch = Math.max(maxBatch, 1);
+	mWindowMs = windowMs;
+	mPending = new ArrayList<Pending>(mMaxBatch);
+    }
+
+    /**
+     * Send whole batches as single requests; null to send each query
+     * separately, as soon as it is queued.  Affects batches not yet
+     * sent.
+     */
+    public synchronized void setCodec(Codec codec) {
+	mCodec = codec;
+    }
+
+    /**
+     * Queue a query, or send it now if there is no Codec; the url is
+     * url+args, as WebHelper.getArgs().
+     * @return future for the response body
+     */
+    public CompletableFuture<String> getArgs(String args) {
+	Pending p = new Pending(args);
+	List<Pending> batch = null;
+	boolean now = false;
+	synchronized (this) {
+	    if (mClosed) {
+		p.future.completeExceptionally(
+		    new WebHelper.WebError(503, "WebBatcher closed"));
+		return p.future;
+	    }
+	    if (mCodec == null)
+		now = true;		// nothing to wait for
+	    else {
+		mPending.add(p);
+		if (mPending.size() >= mMaxBatch)
+		    batch = take();
+		else if (mTimer == null)
+		    mTimer = timer().schedule(new Runnable() {
+			public void run() { flush(); }
+		    }, mWindowMs, TimeUnit.MILLISECONDS);
+	    }
+	}
+	if (now)
+	    send(p);
+	else if (batch != null)
+	    send(batch);
+	return p.future;
+    }
+
+    /**
+     * Send whatever is waiting now.
+     */
+    public void flush() {
+	List<Pending> batch;
+	synchronized (this) {
+	    batch = take();
+	}
+	if (!batch.isEmpty())
+	    send(batch);
+    }
+
+    /**
+     * Send whatever is waiting and refuse further queries.  Does not
+     * close the WebHelper.
+     */
+    public void close() {
+	synchronized (this) {
+	    mClosed = true;
+	}
+	flush();
+    }
+
+    /**
+     * Remove and return the pending batch.  Call with the lock held.
+     */
+    private List<Pending> take() {
+	List<Pending> batch = mPending;
+	mPending = new ArrayList<Pending>(mMaxBatch);
+	if (mTimer != null) {
+	    mTimer.cancel(false);
+	    mTimer = null;
+	}
+	return batch;
+    }
+
+    private void send(final List<Pending> batch) {
+	final Codec codec;
+	synchronized (this) {
+	    codec = mCodec;
+	}
+	if (codec == null || batch.size() == 1) {
+	    for (Pending p : batch)
+		send(p);
+	    return;
+	}
+	List<String> args = new ArrayList<String>(batch.size());
+	for (Pending p : batch)
+	    args.add(p.args);
+	mWeb.getStringAsync(mUrl + codec.join(args)).whenComplete((body, e) -> {
+	    List<String> results = null;
+	    if (e == null) {
+		try {
+		    results = codec.split(body, batch.size());
+		    if (results.size() != batch.size())
+			e = new WebHelper.WebError(502, "batch of " +
+			    batch.size() + " returned " + results.size());
+		} catch (WebHelper.WebError we) {
+		    e = we;
+		} catch (RuntimeException re) {
+		    e = new WebHelper.WebError(502, "Exception: " + re);
+		}
+	    }
+	    for (int i = 0; i < batch.size(); ++i) {
+		if (e != null)
+		    batch.get(i).future.completeExceptionally(e);
+		else
+		    batch.get(i).future.complete(results.get(i));
+	    }
+	});
+    }
+
+    /**
+     * Send one query by itself.
+     */
+    private void send(final Pending p) {
+	mWeb.getStringAsync(mUrl + p.args).whenComplete((body, e) -> {
+	    if (e != null)
+		p.future.completeExceptionally(e);
+	    else
+		p.future.complete(body);
+	});
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+	if (sTimer == null)
+	    sTimer = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "WebBatcher timer");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	return sTimer;
+    }
+}
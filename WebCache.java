@@ -0,0 +1,517 @@
+// $Id$
+
+/**
+ * HTTP response cache for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+
+import android.util.Log;
+
+/**
+ * Size-bounded LRU cache of successful GET responses, in memory and
+ * optionally on disk.  Install with WebHelper.setCache().
+ *
+ * A response is cached if it is a 200 with no "no-store" or "private"
+ * Cache-Control, no Vary other than Accept-Encoding, and a body no
+ * larger than a quarter of the largest tier.  It is fresh for max-age
+ * seconds, or until Expires; a fresh entry is returned without
+ * touching the network.  A stale entry, or one marked "no-cache", is
+ * revalidated with If-None-Match/If-Modified-Since, and on 304 the
+ * cached body is returned and its freshness renewed.  Entries with
+ * neither freshness nor a validator are not kept.
+ *
+ * Bodies are stored as received, still content-encoded, with the
+ * headers needed to decode them; responses served from the cache look
+ * like ordinary 200 responses with a repeatable entity.
+ *
+ * The memory tier evicts least recently used entries once its total
+ * body size exceeds its limit.  The disk tier, if any, is written
+ * through on every store, holds one file per url, and evicts least
+ * recently used files likewise; it survives restarts.
+ *
+ * Thread-safe; one cache may serve several WebHelpers.
+ */
+class WebCache {
+    static private final String TAG = "WebCache";
+    private static final int MAGIC = 0x57434531;	// "WCE1"
+
+    private final long mMaxMem;
+    private final long mMaxDisk;
+    private final File mDir;
+    private long mMemSize = 0;
+    private long mDiskSize = 0;
+    private int mHits, mRevalidated, mMisses;
+
+    // Both in access order, eldest first
+    private final LinkedHashMap<String,Entry> mMem =
+	new LinkedHashMap<String,Entry>(64, 0.75f, true);
+    private final LinkedHashMap<String,Long> mDisk =
+	new LinkedHashMap<String,Long>(64, 0.75f, true);
+
+    /**
+     * One cached response.
+     */
+    static class Entry {
+	final String url;
+	final String etag, lastModified;
+	final String contentType, contentEncoding;
+	final byte[] body;
+	final long expires;	// ms since epoch; 0 = always revalidate
+
+	Entry(String url, String etag, String lastModified,
+	    String contentType, String contentEncoding, byte[] body,
+	    long expires)
+	{
+	    this.url = url;
+	    this.etag = etag;
+	    this.lastModified = lastModified;
+	    this.contentType = contentType;
+	    this.contentEncoding = contentEncoding;
+	    this.body = body;
+	    this.expires = expires;
+	}
+    }
+
+    /**
+     * Memory-only cache.
+     * @param maxMemBytes  total body bytes to keep in memory
+     */
+    public WebCache(long maxMemBytes) {
+	this(maxMemBytes, null, 0);
+    }
+
+    /**
+     * Memory and disk cache.
+     * @param maxMemBytes   total body bytes to keep in memory
+     * @param dir           directory for the disk tier; created if need be
+     * @param maxDiskBytes  total bytes to keep on disk
+     */
+    public WebCache(long maxMemBytes, File dir, long maxDiskBytes) {
+	mMaxMem = maxMemBytes;
+	mDir = dir;
+	mMaxDisk = dir == null ? 0 : maxDiskBytes;
+	if (dir != null)
+	    loadIndex();
+    }
+
+    /**
+     * GET url through the cache.  Called by WebHelper.get(String).
+     * @throws WebHelper.WebError for any status other than 200 or 304
+     */
+    HttpResponse get(WebHelper web, String url) throws WebHelper.WebError {
+	Entry e = lookup(url);
+	long now = System.currentTimeMillis();
+	if (e != null && now < e.expires) {
+	    synchronized (this) { ++mHits; }
+	    return response(e);
+	}
+	HttpGet req = new HttpGet(url);
+	if (e != null) {
+	    if (e.etag != null)
+		req.setHeader("If-None-Match", e.etag);
+	    if (e.lastModified != null)
+		req.setHeader("If-Modified-Since", e.lastModified);
+	}
+	HttpResponse resp = web.execute(req);
+	int status = resp.getStatusLine().getStatusCode();
+	if (status == HttpStatus.SC_NOT_MODIFIED && e != null) {
+	    WebHelper.consume(resp);
+	    e = renewed(e, resp, System.currentTimeMillis());
+	    store(e);
+	    synchronized (this) { ++mRevalidated; }
+	    return response(e);
+	}
+	if (status != HttpStatus.SC_OK) {
+	    WebHelper.consume(resp);
+	    throw new WebHelper.WebError(resp);
+	}
+	synchronized (this) { ++mMisses; }
+	return fill(url, resp, now);
+    }
+
+    /**
+     * Cache resp if it is cacheable.  Returns a response whose body
+     * is still readable: the cached copy, or resp itself.
+     */
+    private HttpResponse fill(String url, HttpResponse resp, long now)
+	throws WebHelper.WebError
+    {
+	HttpEntity entity = resp.getEntity();
+	String cc = header(resp, "Cache-Control");
+	String vary = header(resp, "Vary");
+	String etag = header(resp, "ETag");
+	String lastMod = header(resp, "Last-Modified");
+	long expires = expires(resp, now);
+	long limit = Math.max(mMaxMem, mMaxDisk) / 4;
+	if (entity == null ||
+	    (cc != null && (cc.contains("no-store") || cc.contains("private"))) ||
+	    (vary != null && !vary.trim().equalsIgnoreCase("Accept-Encoding")) ||
+	    (etag == null && lastMod == null && expires == 0) ||
+	    entity.getContentLength() > limit)
+	    return resp;
+
+	// Raw, still encoded; WebHelper.inputStream() decodes on the way out
+	InputStream is;
+	try {
+	    is = entity.getContent();
+	} catch (IOException ex) {
+	    Log.e(TAG, "IO exception: " + ex);
+	    throw new WebHelper.WebError(503, "Exception: " + ex);
+	}
+	if (is == null)
+	    return resp;
+	ByteArrayOutputStream bo = new ByteArrayOutputStream(
+	    entity.getContentLength() > 0 ? (int) entity.getContentLength()
+					  : 8192);
+	byte[] buf = new byte[8192];
+	int n;
+	try {
+	    while ((n = is.read(buf)) >= 0) {
+		bo.write(buf, 0, n);
+		if (bo.size() > limit) {
+		    // Too big after all; hand back what we have plus the rest
+		    BasicHttpEntity rest = new BasicHttpEntity();
+		    rest.setContent(new SequenceInputStream(
+			new ByteArrayInputStream(bo.toByteArray()), is));
+		    rest.setContentType(entity.getContentType());
+		    rest.setContentEncoding(entity.getContentEncoding());
+		    rest.setChunked(entity.isChunked());
+		    resp.setEntity(rest);
+		    return resp;
+		}
+	    }
+	    is.close();
+	} catch (IOException ex) {
+	    Utils.closeQuietly(is);
+	    Log.e(TAG, "IO exception: " + ex);
+	    throw new WebHelper.WebError(503, "Exception: " + ex);
+	}
+	Entry e = new Entry(url, etag, lastMod,
+	    header(resp, "Content-Type"), header(resp, "Content-Encoding"),
+	    bo.toByteArray(), expires);
+	store(e);
+	return response(e);
+    }
+
+    /**
+     * Return e brought up to date by a 304 received at time now: its
+     * freshness from the 304, and any validators or entity headers the
+     * 304 carries in place of the old ones.  Entries are never changed
+     * in place, since other threads may be serving them.
+     */
+    private static Entry renewed(Entry e, HttpResponse resp, long now) {
+	return new Entry(e.url, or(header(resp, "ETag"), e.etag),
+	    or(header(resp, "Last-Modified"), e.lastModified),
+	    or(header(resp, "Content-Type"), e.contentType),
+	    or(header(resp, "Content-Encoding"), e.contentEncoding),
+	    e.body, expires(resp, now));
+    }
+
+    private static String or(String a, String b) {
+	return a != null ? a : b;
+    }
+
+    /**
+     * Return when a response fetched at time now goes stale, from its
+     * Cache-Control or Expires header, or 0 if it must always be
+     * revalidated.
+     */
+    static long expires(HttpResponse resp, long now) {
+	String cc = header(resp, "Cache-Control");
+	if (cc != null) {
+	    if (cc.contains("no-cache"))
+		return 0;
+	    for (String d : cc.split(",")) {
+		d = d.trim();
+		if (d.startsWith("max-age=")) {
+		    try {
+			return now + Long.parseLong(d.substring(8).trim())*1000;
+		    } catch (NumberFormatException ex) {
+			return 0;
+		    }
+		}
+	    }
+	}
+	String exp = header(resp, "Expires");
+	if (exp != null) {
+	    try {
+		Date d = DateUtils.parseDate(exp);
+		return d.getTime() > now ? d.getTime() : 0;
+	    } catch (DateParseException ex) {
+		return 0;
+	    }
+	}
+	return 0;
+    }
+
+    private static String header(HttpResponse resp, String name) {
+	Header h = resp.getFirstHeader(name);
+	return h == null ? null : h.getValue();
+    }
+
+    /**
+     * Build a 200 response from a cache entry.
+     */
+    private static HttpResponse response(Entry e) {
+	HttpResponse resp =
+	    new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+	ByteArrayEntity entity = new ByteArrayEntity(e.body);
+	if (e.contentType != null) {
+	    entity.setContentType(e.contentType);
+	    resp.setHeader("Content-Type", e.contentType);
+	}
+	if (e.contentEncoding != null) {
+	    entity.setContentEncoding(e.contentEncoding);
+	    resp.setHeader("Content-Encoding", e.contentEncoding);
+	}
+	if (e.etag != null)
+	    resp.setHeader("ETag", e.etag);
+	if (e.lastModified != null)
+	    resp.setHeader("Last-Modified", e.lastModified);
+	resp.setEntity(entity);
+	return resp;
+    }
+
+    /**
+     * Drop everything, in memory and on disk.
+     */
+    public synchronized void clear() {
+	mMem.clear();
+	mMemSize = 0;
+	for (String key : mDisk.keySet())
+	    new File(mDir, key).delete();
+	mDisk.clear();
+	mDiskSize = 0;
+    }
+
+    /**
+     * Return hits (served without the network), revalidations (served
+     * after a 304) and misses, in that order.
+     */
+    public synchronized int[] getStats() {
+	return new int[] {mHits, mRevalidated, mMisses};
+    }
+
+    // Memory tier.  The maps and sizes are guarded by the cache's
+    // monitor; files are read and written outside it, so one slow disk
+    // access doesn't hold up every cached GET.
+
+    private Entry lookup(String url) {
+	String key;
+	synchronized (this) {
+	    Entry e = mMem.get(url);
+	    if (e != null || mDir == null)
+		return e;
+	    key = key(url);
+	    if (mDisk.get(key) == null)		// get() also marks it used
+		return null;
+	}
+	Entry e = readDisk(url, key);
+	synchronized (this) {
+	    if (e == null)
+		removeDisk(key);
+	    else if (!mMem.containsKey(url))
+		putMem(e);
+	}
+	return e;
+    }
+
+    private void store(Entry e) {
+	synchronized (this) {
+	    putMem(e);
+	}
+	if (mDir != null)
+	    writeDisk(e);
+    }
+
+    private void putMem(Entry e) {
+	if (e.body.length > mMaxMem) return;
+	Entry old = mMem.put(e.url, e);
+	if (old != null)
+	    mMemSize -= old.body.length;
+	mMemSize += e.body.length;
+	Iterator<Entry> it = mMem.values().iterator();
+	while (mMemSize > mMaxMem && it.hasNext()) {
+	    mMemSize -= it.next().body.length;
+	    it.remove();
+	}
+    }
+
+    // Disk tier.  Each file holds:
+    //	int MAGIC, UTF url, long expires, UTF etag, lastModified,
+    //	contentType, contentEncoding ("" for none), int length, body
+
+    /**
+     * Rebuild the index from the cache directory, oldest first.
+     */
+    private void loadIndex() {
+	if (!mDir.isDirectory() && !mDir.mkdirs()) {
+	    Log.w(TAG, "Can't create " + mDir);
+	    return;
+	}
+	File[] files = mDir.listFiles();
+	if (files == null) return;
+	Arrays.sort(files, new Comparator<File>() {
+	    public int compare(File a, File b) {
+		return Long.compare(a.lastModified(), b.lastModified());
+	    }
+	});
+	for (File f : files) {
+	    if (f.getName().endsWith(".tmp")) {
+		f.delete();
+		continue;
+	    }
+	    mDisk.put(f.getName(), f.length());
+	    mDiskSize += f.length();
+	}
+	trimDisk();
+    }
+
+    /**
+     * Read url's file; null if it is missing, unreadable or for some
+     * other url.  Called without the lock.
+     */
+    private Entry readDisk(String url, String key) {
+	File f = new File(mDir, key);
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new FileInputStream(f));
+	    if (in.readInt() != MAGIC || !in.readUTF().equals(url))
+		return null;
+	    long expires = in.readLong();
+	    String etag = str(in.readUTF());
+	    String lastMod = str(in.readUTF());
+	    String ctype = str(in.readUTF());
+	    String cenc = str(in.readUTF());
+	    byte[] body = new byte[in.readInt()];
+	    in.readFully(body);
+	    f.setLastModified(System.currentTimeMillis());
+	    return new Entry(url, etag, lastMod, ctype, cenc, body, expires);
+	} catch (IOException e) {
+	    Log.w(TAG, "Dropping unreadable cache file " + f + ": " + e);
+	    return null;
+	} finally {
+	    Utils.closeQuietly(in);
+	}
+    }
+
+    /**
+     * Write e's file and add it to the index.  The file is written
+     * under a temporary name of its own and renamed into place, so
+     * concurrent writers and readers of one url never see a torn file.
+     * Called without the lock.
+     */
+    private void writeDisk(Entry e) {
+	if (e.body.length > mMaxDisk) return;
+	String key = key(e.url);
+	File f = new File(mDir, key);
+	File tmp = null;
+	DataOutputStream out = null;
+	try {
+	    tmp = File.createTempFile(key, ".tmp", mDir);
+	    out = new DataOutputStream(new FileOutputStream(tmp));
+	    out.writeInt(MAGIC);
+	    out.writeUTF(e.url);
+	    out.writeLong(e.expires);
+	    out.writeUTF(e.etag == null ? "" : e.etag);
+	    out.writeUTF(e.lastModified == null ? "" : e.lastModified);
+	    out.writeUTF(e.contentType == null ? "" : e.contentType);
+	    out.writeUTF(e.contentEncoding == null ? "" : e.contentEncoding);
+	    out.writeInt(e.body.length);
+	    out.write(e.body);
+	    out.close();
+	    out = null;
+	    if (!tmp.renameTo(f)) {
+		f.delete();
+		if (!tmp.renameTo(f))
+		    throw new IOException("rename failed");
+	    }
+	} catch (IOException ex) {
+	    Log.w(TAG, "Can't write cache file " + f + ": " + ex);
+	    Utils.closeQuietly(out);
+	    if (tmp != null)
+		tmp.delete();
+	    return;
+	}
+	long len = f.length();
+	synchronized (this) {
+	    Long old = mDisk.put(key, len);
+	    if (old != null)
+		mDiskSize -= old;
+	    mDiskSize += len;
+	    trimDisk();
+	}
+    }
+
+    private void trimDisk() {
+	Iterator<Map.Entry<String,Long>> it = mDisk.entrySet().iterator();
+	while (mDiskSize > mMaxDisk && it.hasNext()) {
+	    Map.Entry<String,Long> me = it.next();
+	    new File(mDir, me.getKey()).delete();
+	    mDiskSize -= me.getValue();
+	    it.remove();
+	}
+    }
+
+    private void removeDisk(String key) {
+	Long size = mDisk.remove(key);
+	if (size != null)
+	    mDiskSize -= size;
+	new File(mDir, key).delete();
+    }
+
+    private static String str(String s) {
+	return s.length() == 0 ? null : s;
+    }
+
+    /**
+     * File name for a url: hex SHA-1 of the url.
+     */
+    private static String key(String url) {
+	try {
+	    byte[] d = MessageDigest.getInstance("SHA-1")
+			.digest(url.getBytes("UTF-8"));
+	    StringBuilder sb = new StringBuilder(40);
+	    for (byte b : d)
+		sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+		  .append(Character.forDigit(b & 0xf, 16));
+	    return sb.toString();
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+}
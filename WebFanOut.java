@@ -0,0 +1,323 @@
+// $Id$
+
+/**
+ * Concurrent fan-out of many WebHelper requests, gathered in order.
+ */
+
+package com.android.recovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+
+import android.util.Log;
+
+/**
+ * Runs a group of requests at once and returns their results in the
+ * order given, as one blocking call:
+ *
+ *	WebFanOut fan = new WebFanOut(web);
+ *	fan.setDeadline(2000);
+ *	List<String> bodies = fan.getArgs(argList);
+ *
+ * Every request of a group is started at once, one task each, but no
+ * more than setMaxPerHost() run against any one host, the rest wait
+ * their turn.  The default is the pool's per-host limit, since more
+ * would only queue for connections.  The group can have a deadline,
+ * and by default the first failure ends it: requests still running
+ * are aborted, those not started are dropped, and that failure is
+ * thrown.  Either way no task outlives the call.
+ *
+ * Tasks run on virtual threads where the runtime has them (Java 21),
+ * so a group of hundreds costs no pool tuning, and otherwise on the
+ * WebHelper's executor.  setExecutor() picks another.
+ */
+class WebFanOut {
+    private static final String TAG = "WebFanOut";
+
+    private final WebHelper mWeb;
+    private Executor mExecutor = null;
+    private int mMaxPerHost = 0;
+    private long mDeadlineMs = 0;
+    private boolean mFailFast = true;
+
+    private static Executor sVirtual = null;
+    private static boolean sVirtualChecked = false;
+
+    /**
+     * Does the work of one request; the default is getString().
+     * Throw WebError to fail it.
+     */
+    public interface Fetch<T> {
+	T fetch(WebHelper web, HttpGet req) throws WebHelper.WebError;
+    }
+
+    private static final Fetch<String> getString = new Fetch<String>() {
+	public String fetch(WebHelper web, HttpGet req)
+	    throws WebHelper.WebError
+	{
+	    return web.getString(req);
+	}
+    };
+
+    public WebFanOut(WebHelper web) {
+	mWeb = web;
+    }
+
+    /**
+     * Run tasks on the given executor; null for the default.  It must
+     * have a thread for every task, or at least for maxPerHost of them
+     * per host, since waiting tasks hold their threads.
+     */
+    public void setExecutor(Executor executor) {
+	mExecutor = executor;
+    }
+
+    /**
+     * Most requests in flight to any one host; 0 for the pool's
+     * per-host limit.
+     */
+    public void setMaxPerHost(int n) {
+	mMaxPerHost = Math.max(n, 0);
+    }
+
+    /**
+     * Time allowed for a whole group, in ms; 0 for none.  Requests
+     * unfinished at the deadline fail with 504.
+     */
+    public void setDeadline(long ms) {
+	mDeadlineMs = ms;
+    }
+
+    /**
+     * True (the default) to end the group at the first failure and
+     * throw it.  False to run every request; failed ones give null,
+     * and their errors go in the errors list, if one is passed.
+     */
+    public void setFailFast(boolean failFast) {
+	mFailFast = failFast;
+    }
+
+    /**
+     * getArgs() against the default url, for each of args; return the
+     * bodies as strings, in order.
+     */
+    public List<String> getArgs(List<String> args) throws WebHelper.WebError {
+	return getArgs(mWeb.getDefUrl(), args);
+    }
+
+    public List<String> getArgs(String url, List<String> args)
+	throws WebHelper.WebError
+    {
+	List<String> urls = new ArrayList<String>(args.size());
+	for (String a : args)
+	    urls.add(url + a);
+	return map(urls, getString, null);
+    }
+
+    /**
+     * GET each url, return the bodies as strings, in order.
+     */
+    public List<String> getStrings(List<String> urls)
+	throws WebHelper.WebError
+    {
+	return map(urls, getString, null);
+    }
+
+    /**
+     * Run fetch for each url, return the results in order.
+     * @param errors  if not null, filled with one entry per url, null
+     *                for those that succeeded; useful without fail-fast
+     * @throws WebError  the first failure, if fail-fast
+     */
+    public <T> List<T> map(List<String> urls, final Fetch<T> fetch,
+	List<WebHelper.WebError> errors) throws WebHelper.WebError
+    {
+	final Group<T> g = new Group<T>(urls.size(), mFailFast);
+	long deadline = mDeadlineMs > 0
+	    ? System.nanoTime() + mDeadlineMs * 1000000 : 0;
+	int perHost = mMaxPerHost > 0 ? mMaxPerHost : WebHelper.maxPerRoute();
+	ConcurrentHashMap<String,Semaphore> hosts =
+	    new ConcurrentHashMap<String,Semaphore>();
+	Executor executor = executor();
+
+	// Build every request before starting any task, so that a cancel()
+	// from a task sees all of them; execute() publishes the array.
+	for (int i = 0; i < g.reqs.length; ++i) {
+	    try {
+		g.reqs[i] = new HttpGet(urls.get(i));
+	    } catch (IllegalArgumentException e) {
+		g.fail(i, new WebHelper.WebError(400, "Bad url: " + e));
+	    }
+	}
+	for (int i = 0; i < g.reqs.length; ++i) {
+	    final HttpGet req = g.reqs[i];
+	    if (req == null)
+		continue;
+	    String host = WebHelper.hostKey(req);
+	    Semaphore s = hosts.get(host);
+	    if (s == null) {
+		hosts.putIfAbsent(host, new Semaphore(perHost));
+		s = hosts.get(host);
+	    }
+	    final int index = i;
+	    final Semaphore slots = s;
+	    try {
+		executor.execute(() -> g.run(mWeb, index, req, fetch, slots));
+	    } catch (RejectedExecutionException e) {
+		g.fail(index, new WebHelper.WebError(503, "Exception: " + e));
+	    }
+	}
+
+	try {
+	    if (deadline == 0)
+		g.done.await();
+	    else if (!g.done.await(deadline - System.nanoTime(),
+				   TimeUnit.NANOSECONDS)) {
+		g.cancel(new WebHelper.WebError(504, "Deadline exceeded"));
+		g.done.await();		// aborted requests return promptly
+	    }
+	} catch (InterruptedException e) {
+	    g.cancel(new WebHelper.WebError(503, "Interrupted"));
+	    // keep the promise that no task outlives the call
+	    for (;;) {
+		try {
+		    g.done.await();
+		    break;
+		} catch (InterruptedException e1) {
+		}
+	    }
+	    Thread.currentThread().interrupt();
+	    throw g.first;
+	}
+
+	if (errors != null) {
+	    errors.clear();
+	    for (WebHelper.WebError e : g.errors)
+		errors.add(e);
+	}
+	if (g.failFast && g.first != null)
+	    throw g.first;
+	List<T> results = new ArrayList<T>(g.results.length);
+	for (Object o : g.results) {
+	    @SuppressWarnings("unchecked")
+	    T t = (T) o;
+	    results.add(t);
+	}
+	return results;
+    }
+
+    /**
+     * State of one map() call, shared by its tasks.
+     */
+    private static class Group<T> {
+	final HttpGet[] reqs;
+	final Object[] results;
+	final WebHelper.WebError[] errors;
+	final CountDownLatch done;
+	final boolean failFast;
+	volatile boolean cancelled = false;
+	volatile WebHelper.WebError reason = null;	// why cancelled
+	volatile WebHelper.WebError first = null;
+
+	Group(int n, boolean failFast) {
+	    reqs = new HttpGet[n];
+	    results = new Object[n];
+	    errors = new WebHelper.WebError[n];
+	    done = new CountDownLatch(n);
+	    this.failFast = failFast;
+	}
+
+	void run(WebHelper web, int i, HttpGet req, Fetch<T> fetch,
+	    Semaphore slots)
+	{
+	    try {
+		slots.acquire();
+	    } catch (InterruptedException e) {
+		fail(i, new WebHelper.WebError(503, "Interrupted"));
+		return;
+	    }
+	    WebHelper.WebError err = null;
+	    try {
+		if (cancelled)
+		    err = reason;
+		else
+		    results[i] = fetch.fetch(web, req);
+	    } catch (WebHelper.WebError e) {
+		err = cancelled ? reason : e;
+	    } catch (Throwable e) {
+		Log.e(TAG, "Unknown exception: " + e);
+		err = new WebHelper.WebError(503, "Exception: " + e);
+		if (e instanceof Error)
+		    throw (Error) e;
+	    } finally {
+		// exactly one count per task, however it ends
+		slots.release();
+		if (err != null)
+		    fail(i, err);
+		else
+		    done.countDown();
+	    }
+	}
+
+	void fail(int i, WebHelper.WebError e) {
+	    errors[i] = e;
+	    synchronized (this) {
+		if (first == null)
+		    first = e;
+	    }
+	    if (failFast)
+		cancel(e);
+	    done.countDown();
+	}
+
+	/**
+	 * Abort every request still running; tasks not yet started
+	 * fail as they get their turn.
+	 */
+	void cancel(WebHelper.WebError e) {
+	    synchronized (this) {
+		if (cancelled) return;
+		if (first == null)
+		    first = e;
+		reason = e;
+		cancelled = true;
+	    }
+	    for (HttpGet r : reqs)
+		if (r != null)
+		    r.abort();
+	}
+    }
+
+    private Executor executor() {
+	if (mExecutor != null)
+	    return mExecutor;
+	Executor v = virtualThreads();
+	return v != null ? v : mWeb.executor();
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() if this runtime has
+     * it; found by reflection so this compiles for older ones.
+     */
+    private static synchronized Executor virtualThreads() {
+	if (!sVirtualChecked) {
+	    sVirtualChecked = true;
+	    try {
+		sVirtual = (Executor) java.util.concurrent.Executors.class
+		    .getMethod("newVirtualThreadPerTaskExecutor")
+		    .invoke(null);
+	    } catch (ReflectiveOperationException e) {
+		// no virtual threads before Java 21, or on Android
+	    }
+	}
+	return sVirtual;
+    }
+}
@@ -8,31 +8,77 @@
 
 package com.android.recovery;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpEntity;
-import org.apache.http.entity.EntityTemplate;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.NameValuePair;
+import org.apache.http.HttpVersion;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import android.util.Log;
 
@@ -48,8 +94,13 @@ import android.util.Log;
  *  getString(String url)	GET a url, return String
  *  getString(HttpRequestBase)	GET a url, return String
  *  getString(HttpResponse)	Extract a string from a response
+ *  stream(url, ChunkHandler)	GET a url, feed the body to a callback
+ *  stream(HttpRequestBase, h)	Same
+ *  lines(String url)		GET a url, iterate over lines of the body
+ *  lines(HttpRequestBase)	Same
  *  getArgs(String url, args)	Append args to url and get()
  *  getArgs(String args)	Same, use default url
+ *  getDefUrl()			Default url for getArgs(args); see WebBatcher
  *  head(String url)		HEAD request, return HttpResponse
  *  post(url, String data)	POST request with data, return HttpResponse
  *  post(url, List data)	POST request with list of name/value pairs
@@ -59,25 +110,449 @@ import android.util.Log;
  *  post(url, HttpEntity)	POST arbitrary request, arbitrary data entity
  *  post(HttpPost, HttpEntity)	POST arbitrary request, arbitrary data entity
  *
+ * Each of the above, other than the utilities, also has an xxxAsync()
+ * form (getAsync, getStringAsync, getArgsAsync, headAsync, postAsync)
+ * which returns a CompletableFuture right away.  The future fails with
+ * the same WebError the blocking call would have thrown.
+ *  setExecutor(Executor)	Choose where async calls run
+ *
  * Utilities:
  *
  *  entity(HttpResponse resp)		Convert HttpResponse to HttpEntity
  *  inputStream(HttpEntity entity)	Convert HttpEntity to InputStream
  *  getString(InputStream)		Convert InputStream to String
+ *  stream(HttpResponse, handler)	Feed a response body to a callback
+ *  lines(HttpResponse)			Iterate over lines of a response
+ *  charset(HttpResponse)		Charset from Content-Type
+ *  setPoolLimits(total, route, idle)	Configure the shared connection pool
+ *  setCache(WebCache)			Cache GET responses; see WebCache
+ *  setGzipRequests(boolean)		Gzip POST bodies
+ *  setPolicy(WebPolicy)		Retries, breakers, hedging, timeouts
+ *  setMetrics(WebMetrics)		Timings and counts; see WebStats
+ *
+ * Requests ask for gzip or deflate responses, and inputStream(), and
+ * so everything that reads a body, decompresses them as they stream.
+ *
+ * All WebHelper objects share one thread-safe pool of keep-alive
+ * connections.  A connection goes back to the pool when its response
+ * has been read to the end or its InputStream closed, so always close
+ * the streams you get back.  close() releases this object's hold on
+ * the pool; the pool shuts down when the last WebHelper is closed.
  */
 class WebHelper {
     static private final String TAG = "WebHelper";
     private String mDefUrl = "http://www.example.com/cgi-bin/api";
     private HttpClient mClient = null;
     private Random mRand = null;
+    private Executor mExecutor = null;
+    private WebCache mCache = null;
+    private boolean mGzipRequests = false;
+    private WebPolicy mPolicy = null;
+    private WebMetrics mMetrics = null;
+
+    // Shared connection pool
+    private static int sMaxTotal = 64;
+    private static int sMaxPerRoute = 8;
+    private static long sIdleMs = 30000;
+    private static long sLeaseMs = 30000;
+    private static ClientConnectionManager sPool = null;
+    private static HttpParams sParams = null;
+    private static Thread sReaper = null;
+    private static int sRefs = 0;
+    private static ThreadPoolExecutor sAsync = null;
+    // Time spent opening a connection by this thread's current request
+    private static final ThreadLocal<long[]> sConnectNs =
+	new ThreadLocal<long[]>() {
+	    protected long[] initialValue() { return new long[1]; }
+	};
+
+    /** Charset used when a response doesn't specify one. */
+    public static final String DEFAULT_CHARSET = "UTF-8";
+    /** Buffer size for stream() and lines(). */
+    public static final int CHUNK_SIZE = 64*1024;
 
     public WebHelper() {
-	mClient = new DefaultHttpClient();
+	mClient = new DefaultHttpClient(acquirePool(), sParams);
     }
 
     public WebHelper(final String url) {
 	mDefUrl = url;
-	mClient = new DefaultHttpClient();
+	mClient = new DefaultHttpClient(acquirePool(), sParams);
+    }
+
+    /**
+     * Configure the shared connection pool.  Takes effect the next
+     * time the pool is created, i.e. call this before creating the
+     * first WebHelper.  The default async executor, which has a thread
+     * per connection, is resized at once.
+     * @param maxTotal     maximum open connections, all hosts
+     * @param maxPerRoute  maximum open connections to any one host
+     * @param idleMs       close connections idle longer than this
+     */
+    public static synchronized void setPoolLimits(int maxTotal,
+	int maxPerRoute, long idleMs)
+    {
+	sMaxTotal = maxTotal;
+	sMaxPerRoute = maxPerRoute;
+	sIdleMs = idleMs;
+	if (sAsync != null) {
+	    // the core size may never exceed the maximum, even briefly
+	    if (maxTotal > sAsync.getMaximumPoolSize()) {
+		sAsync.setMaximumPoolSize(maxTotal);
+		sAsync.setCorePoolSize(maxTotal);
+	    } else {
+		sAsync.setCorePoolSize(maxTotal);
+		sAsync.setMaximumPoolSize(maxTotal);
+	    }
+	}
+    }
+
+    /**
+     * How long a request waits for a pooled connection before failing
+     * with a 503 WebError.  A stream that is never closed holds its
+     * connection, so without a limit enough of them would hang every
+     * later request to that host.  Takes effect the next time the pool
+     * is created.  A WebPolicy connect timeout overrides it.
+     * @param ms  wait limit; 0 to wait forever
+     */
+    public static synchronized void setLeaseTimeout(long ms) {
+	sLeaseMs = ms;
+    }
+
+    /**
+     * Maximum open connections to any one host.
+     */
+    static synchronized int maxPerRoute() {
+	return sMaxPerRoute;
+    }
+
+    /**
+     * Apply retries, circuit breakers, hedging and timeouts to every
+     * request this object makes.  A policy may be shared by several
+     * WebHelpers, and should be, since its circuit breakers are per
+     * host.  Replaces the client's own retry of failed sends.
+     * @param policy  the policy, or null for one plain attempt
+     */
+    public void setPolicy(WebPolicy policy) {
+	mPolicy = policy;
+	if (mClient instanceof DefaultHttpClient)
+	    ((DefaultHttpClient) mClient).setHttpRequestRetryHandler(
+		policy == null ? new DefaultHttpRequestRetryHandler()
+			       : new DefaultHttpRequestRetryHandler(0, false));
+    }
+
+    public WebPolicy getPolicy() {
+	return mPolicy;
+    }
+
+    /**
+     * Report timings and counts for every request to the given
+     * WebMetrics, e.g. a WebStats.  A WebMetrics may be shared.
+     * @param metrics  where to report, or null for no reports
+     */
+    public void setMetrics(WebMetrics metrics) {
+	mMetrics = metrics;
+    }
+
+    public WebMetrics getMetrics() {
+	return mMetrics;
+    }
+
+    /**
+     * Return the default url used by getArgs(String args).
+     */
+    public String getDefUrl() {
+	return mDefUrl;
+    }
+
+    /**
+     * Compress the bodies of subsequent POST requests with gzip.  Only
+     * for servers known to accept Content-Encoding: gzip requests.
+     */
+    public void setGzipRequests(boolean gzip) {
+	mGzipRequests = gzip;
+    }
+
+    /**
+     * Ask for a compressed response, unless the caller already chose.
+     * inputStream() undoes the compression.
+     */
+    private static void acceptEncoding(HttpRequestBase req) {
+	if (!req.containsHeader("Accept-Encoding"))
+	    req.setHeader("Accept-Encoding", "gzip, deflate");
+    }
+
+    /**
+     * Serve get(String url), and the methods built on it, through the
+     * given cache.  A cache may be shared by several WebHelpers.
+     * @param cache  the cache, or null to always fetch
+     */
+    public void setCache(WebCache cache) {
+	mCache = cache;
+    }
+
+    /**
+     * Return the shared pool, creating it if necessary, and count
+     * one more user.
+     */
+    private static synchronized ClientConnectionManager acquirePool() {
+	if (sPool == null) {
+	    HttpParams params = new BasicHttpParams();
+	    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+	    ConnManagerParams.setMaxTotalConnections(params, sMaxTotal);
+	    ConnManagerParams.setMaxConnectionsPerRoute(params,
+		new ConnPerRouteBean(sMaxPerRoute));
+	    ConnManagerParams.setTimeout(params, sLeaseMs);
+	    SchemeRegistry schemes = new SchemeRegistry();
+	    schemes.register(new Scheme("http",
+		new TimedSocketFactory(PlainSocketFactory.getSocketFactory()),
+		80));
+	    schemes.register(new Scheme("https",
+		new TimedLayeredSocketFactory(SSLSocketFactory.getSocketFactory()),
+		443));
+	    sParams = params;
+	    sPool = new ThreadSafeClientConnManager(params, schemes);
+	    sReaper = new IdleReaper(sPool, sIdleMs);
+	    sReaper.start();
+	}
+	++sRefs;
+	return sPool;
+    }
+
+    /**
+     * One less user of the pool; shut it down if that was the last.
+     */
+    private static synchronized void releasePool() {
+	if (--sRefs > 0)
+	    return;
+	sReaper.interrupt();
+	sPool.shutdown();
+	sReaper = null;
+	sPool = null;
+	sParams = null;
+    }
+
+    /**
+     * Socket factory wrapper that times new connections, for
+     * WebMetrics.  The time is left in sConnectNs for the thread that
+     * asked for the connection.
+     */
+    private static class TimedSocketFactory implements SocketFactory {
+	final SocketFactory sf;
+
+	TimedSocketFactory(SocketFactory sf) {
+	    this.sf = sf;
+	}
+
+	public Socket createSocket() throws IOException {
+	    return sf.createSocket();
+	}
+
+	public Socket connectSocket(Socket sock, String host, int port,
+	    InetAddress localAddress, int localPort, HttpParams params)
+	    throws IOException
+	{
+	    long t0 = System.nanoTime();
+	    try {
+		return sf.connectSocket(sock, host, port, localAddress,
+		    localPort, params);
+	    } finally {
+		long[] t = sConnectNs.get();
+		t[0] = Math.max(t[0], 0) + System.nanoTime() - t0;
+	    }
+	}
+
+	public boolean isSecure(Socket sock) {
+	    return sf.isSecure(sock);
+	}
+    }
+
+    /**
+     * The same, for https.  Kept separate because the client treats
+     * any layered factory as secure.
+     */
+    private static class TimedLayeredSocketFactory extends TimedSocketFactory
+	implements LayeredSocketFactory
+    {
+	TimedLayeredSocketFactory(LayeredSocketFactory sf) {
+	    super(sf);
+	}
+
+	public Socket createSocket(Socket sock, String host, int port,
+	    boolean autoClose) throws IOException
+	{
+	    return ((LayeredSocketFactory) sf).createSocket(sock, host, port,
+		autoClose);
+	}
+    }
+
+    /**
+     * Request entity wrapper that counts the bytes written.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+	long count;
+
+	CountingEntity(HttpEntity entity) {
+	    super(entity);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+	    wrappedEntity.writeTo(new FilterOutputStream(out) {
+		public void write(int b) throws IOException {
+		    out.write(b);
+		    ++count;
+		}
+		public void write(byte[] b, int off, int len)
+		    throws IOException
+		{
+		    out.write(b, off, len);
+		    count += len;
+		}
+	    });
+	}
+    }
+
+    /**
+     * Response entity wrapper that counts the bytes read and reports
+     * to WebMetrics when the body is finished with: read to the end,
+     * closed, or consumed.
+     */
+    private static class MeteredEntity extends HttpEntityWrapper {
+	private final WebMetrics metrics;
+	private final String host, method;
+	private final int status;
+	private final long t0, bytesOut;
+	private long bytesIn;
+	private boolean done;
+	private InputStream stream;
+
+	MeteredEntity(HttpEntity entity, WebMetrics metrics, String host,
+	    String method, int status, long t0, long bytesOut)
+	{
+	    super(entity == null ? new BasicHttpEntity() : entity);
+	    this.metrics = metrics;
+	    this.host = host;
+	    this.method = method;
+	    this.status = status;
+	    this.t0 = t0;
+	    this.bytesOut = bytesOut;
+	}
+
+	synchronized void finish() {
+	    if (done) return;
+	    done = true;
+	    metrics.completed(host, method, status, System.nanoTime() - t0,
+		bytesIn, bytesOut);
+	}
+
+	public synchronized InputStream getContent() throws IOException {
+	    if (stream != null)
+		return stream;
+	    InputStream in = wrappedEntity.getContent();
+	    if (in == null) {
+		finish();
+		return null;
+	    }
+	    stream = new MeteredStream(in);
+	    return stream;
+	}
+
+	/**
+	 * Counts as it goes.  Passes abortConnection() through, so that
+	 * a decoder closed early can abort the connection from above.
+	 */
+	private class MeteredStream extends FilterInputStream
+	    implements ConnectionReleaseTrigger
+	{
+	    MeteredStream(InputStream in) {
+		super(in);
+	    }
+	    public int read() throws IOException {
+		int c = super.read();
+		if (c < 0) finish(); else ++bytesIn;
+		return c;
+	    }
+	    public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n < 0) finish(); else bytesIn += n;
+		return n;
+	    }
+	    public long skip(long n) throws IOException {
+		long k = super.skip(n);
+		bytesIn += k;
+		return k;
+	    }
+	    public void close() throws IOException {
+		try { super.close(); } finally { finish(); }
+	    }
+	    public void releaseConnection() throws IOException {
+		close();
+	    }
+	    public void abortConnection() throws IOException {
+		try {
+		    if (in instanceof ConnectionReleaseTrigger)
+			((ConnectionReleaseTrigger) in).abortConnection();
+		    else
+			in.close();
+		} finally {
+		    finish();
+		}
+	    }
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+	    InputStream in = getContent();
+	    if (in == null) return;
+	    byte[] buf = new byte[8192];
+	    int n;
+	    try {
+		while ((n = in.read(buf)) >= 0)
+		    out.write(buf, 0, n);
+	    } finally {
+		in.close();
+	    }
+	}
+
+	public void consumeContent() throws IOException {
+	    if (!isStreaming() && stream == null) {
+		wrappedEntity.consumeContent();
+		finish();
+		return;
+	    }
+	    InputStream in = getContent();
+	    if (in == null) return;
+	    byte[] buf = new byte[8192];
+	    try {
+		while (in.read(buf) >= 0)
+		    ;
+	    } finally {
+		in.close();
+	    }
+	}
+    }
+
+    /**
+     * Background thread that evicts expired and long-idle connections
+     * from the pool, so the server doesn't close them under us.
+     */
+    private static class IdleReaper extends Thread {
+	private final ClientConnectionManager pool;
+	private final long idleMs;
+
+	IdleReaper(ClientConnectionManager pool, long idleMs) {
+	    super("WebHelper idle reaper");
+	    setDaemon(true);
+	    this.pool = pool;
+	    this.idleMs = idleMs;
+	}
+
+	@Override
+	public void run() {
+	    while (!Utils.sleep((int) Math.max(idleMs / 2, 1000))) {
+		pool.closeExpiredConnections();
+		pool.closeIdleConnections(idleMs, TimeUnit.MILLISECONDS);
+	    }
+	}
     }
 
     // Any http return other than SC_OK will throw this exception.
@@ -101,6 +576,8 @@ class WebHelper {
      * GET the given url, return an HttpResponse
      */
     public HttpResponse get(String url) throws WebError {
+	if (mCache != null)
+	    return mCache.get(this, url);
 	HttpGet req = new HttpGet(url);
 	req.setHeader("Cache-Control", "no-cache");
 	return get(req);
@@ -110,24 +587,105 @@ class WebHelper {
      * Fetch the given request, return an HttpResponse
      */
     public HttpResponse get(HttpRequestBase req) throws WebError {
-	HttpResponse resp;
+	HttpResponse resp = execute(req);
+	int status = resp.getStatusLine().getStatusCode();
+	if (status != HttpStatus.SC_OK) {
+	    consume(resp);
+	    throw new WebError(resp);
+	}
+	return resp;
+    }
+
+    /**
+     * Execute the given request and return the response, whatever its
+     * status.  Only failure to get a response at all throws.
+     */
+    HttpResponse execute(HttpRequestBase req) throws WebError {
+	acceptEncoding(req);
+	WebPolicy policy = mPolicy;
+	return policy == null ? executeOnce(req) : policy.execute(this, req);
+    }
+
+    /**
+     * One attempt at a request, no retries.  The WebError's cause is
+     * the underlying exception.
+     */
+    HttpResponse executeOnce(HttpRequestBase req) throws WebError {
+	WebMetrics metrics = mMetrics;
+	return metrics == null ? send(req) : metered(req, metrics);
+    }
+
+    private HttpResponse send(HttpRequestBase req) throws WebError {
 	try {
-	    resp = mClient.execute(req);
-	    int status = resp.getStatusLine().getStatusCode();
-	    if (status != HttpStatus.SC_OK)
-		throw new WebError(resp);
-	    return resp;
+	    return mClient.execute(req);
 	} catch (ClientProtocolException e) {
 	    Log.e(TAG, "Protocol exception: " + e);
-	    throw new WebError(503, "Exception: " + e);
+	    throw (WebError) new WebError(503, "Exception: " + e).initCause(e);
 	} catch (UnknownHostException e) {
-	    throw new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
-	    			"Exception: " + e);
+	    throw (WebError) new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
+	    			"Exception: " + e).initCause(e);
 	} catch (IOException e) {
-	    Log.e(TAG, "IO exception: " + e);
-	    throw new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
-	    			"Exception: " + e);
+	    if (!req.isAborted())
+		Log.e(TAG, "IO exception: " + e);
+	    throw (WebError) new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
+	    			"Exception: " + e).initCause(e);
+	}
+    }
+
+    /**
+     * executeOnce(), reporting to metrics.  The response entity is
+     * wrapped to count the bytes read and to report completion.
+     */
+    private HttpResponse metered(HttpRequestBase req, WebMetrics metrics)
+	throws WebError
+    {
+	final String host = hostKey(req);
+	final String method = req.getMethod();
+	HttpEntityEnclosingRequest er = req instanceof HttpEntityEnclosingRequest
+	    ? (HttpEntityEnclosingRequest) req : null;
+	HttpEntity sent = er == null ? null : er.getEntity();
+	CountingEntity out = sent == null ? null : new CountingEntity(sent);
+	if (out != null)
+	    er.setEntity(out);
+	long[] connect = sConnectNs.get();
+	connect[0] = -1;
+	long t0 = System.nanoTime();
+	HttpResponse resp;
+	try {
+	    resp = send(req);
+	} catch (WebError e) {
+	    metrics.failed(host, method, System.nanoTime() - t0);
+	    throw e;
+	} finally {
+	    if (out != null)
+		er.setEntity(sent);
+	    if (connect[0] >= 0)
+		metrics.connected(host, connect[0]);
+	    if (sPool instanceof ThreadSafeClientConnManager)
+		metrics.pool(((ThreadSafeClientConnManager) sPool)
+		    .getConnectionsInPool(), sMaxTotal);
 	}
+	int status = resp.getStatusLine().getStatusCode();
+	metrics.response(host, method, status, System.nanoTime() - t0);
+	MeteredEntity in = new MeteredEntity(resp.getEntity(), metrics, host,
+	    method, status, t0, out == null ? 0 : out.count);
+	if (resp.getEntity() == null)
+	    in.finish();
+	else
+	    resp.setEntity(in);
+	return resp;
+    }
+
+    /**
+     * Return "host:port" for the request's target, the key used by
+     * WebPolicy and WebMetrics.
+     */
+    static String hostKey(HttpRequestBase req) {
+	URI u = req.getURI();
+	int port = u.getPort();
+	if (port < 0)
+	    port = "https".equalsIgnoreCase(u.getScheme()) ? 443 : 80;
+	return u.getHost() + ":" + port;
     }
 
     /**
@@ -156,22 +714,31 @@ class WebHelper {
      * GET the given url, return as a string
      */
     public String getString(final String url) throws WebError {
-	return getString(getStream(url));
+	return getString(get(url));
     }
 
     /**
      * GET the given url, return as a string
      */
     public String getString(final HttpRequestBase req) throws WebError {
-	return getString(getStream(req));
+	return getString(get(req));
     }
 
     /**
-     * Utility: convert an HttpResponse to a string.
+     * Utility: convert an HttpResponse to a string, decoded with the
+     * charset named in its Content-Type.  Line endings are preserved.
+     * For large bodies, use stream() or lines() instead.
      * @throws WebError on failure.
      */
     public static String getString(final HttpResponse resp) throws WebError {
-	return getString(inputStream(entity(resp)));
+	HttpEntity entity = entity(resp);
+	try {
+	    return Utils.inputStreamAsString(inputStream(entity),
+		charset(resp), entity.getContentLength());
+	} catch (IOException e) {
+	    Log.e(TAG, "IO Exception in getString: " + e);
+	    throw new WebError(503, "Exception: " + e);
+	}
     }
 
     /**
@@ -188,6 +755,151 @@ class WebHelper {
 	}
     }
 
+    /**
+     * Utility: return the charset from the response's Content-Type,
+     * or DEFAULT_CHARSET if it doesn't name one.
+     */
+    public static String charset(final HttpResponse resp) {
+	HttpEntity entity = resp.getEntity();
+	String cs = entity == null ? null : EntityUtils.getContentCharSet(entity);
+	return cs != null ? cs : DEFAULT_CHARSET;
+    }
+
+    /**
+     * Receives a response body a piece at a time; see stream().
+     */
+    public interface ChunkHandler {
+	/**
+	 * Called once per chunk read.  buf is only valid for the
+	 * duration of the call; its contents are overwritten by the
+	 * next chunk.
+	 */
+	void chunk(ByteBuffer buf) throws IOException;
+    }
+
+    /**
+     * GET the given url and pass the body to handler in chunks, so
+     * that it is never all in memory at once.
+     * @return number of bytes read
+     */
+    public long stream(String url, ChunkHandler handler) throws WebError {
+	return stream(get(url), handler);
+    }
+
+    public long stream(HttpRequestBase req, ChunkHandler handler)
+	throws WebError
+    {
+	return stream(get(req), handler);
+    }
+
+    /**
+     * Utility: pass the body of resp to handler in chunks of up to
+     * CHUNK_SIZE bytes, reusing one buffer.  The stream is closed,
+     * and the connection released, when done or on error.
+     * @return number of bytes read
+     */
+    public static long stream(HttpResponse resp, ChunkHandler handler)
+	throws WebError
+    {
+	InputStream is = inputStream(entity(resp));
+	byte[] buf = new byte[CHUNK_SIZE];
+	ByteBuffer bb = ByteBuffer.wrap(buf);
+	long total = 0;
+	int n;
+	try {
+	    while ((n = is.read(buf)) >= 0) {
+		if (n == 0) continue;
+		bb.clear().limit(n);
+		handler.chunk(bb);
+		total += n;
+	    }
+	    return total;
+	} catch (IOException e) {
+	    Log.e(TAG, "IO exception: " + e);
+	    throw new WebError(503, "Exception: " + e);
+	} finally {
+	    Utils.closeQuietly(is);
+	}
+    }
+
+    /**
+     * GET the given url and return an iterator over the lines of the
+     * body.  Close it when done, unless it has been read to the end.
+     */
+    public Lines lines(String url) throws WebError {
+	return lines(get(url));
+    }
+
+    public Lines lines(HttpRequestBase req) throws WebError {
+	return lines(get(req));
+    }
+
+    /**
+     * Utility: iterate over the lines of resp's body, decoded with
+     * its charset.
+     */
+    public static Lines lines(HttpResponse resp) throws WebError {
+	InputStream is = inputStream(entity(resp));
+	try {
+	    return new Lines(new BufferedReader(
+		new InputStreamReader(is, charset(resp)), CHUNK_SIZE));
+	} catch (UnsupportedEncodingException e) {
+	    Utils.closeQuietly(is);
+	    Log.e(TAG, "Unsupported encoding: " + e);
+	    throw new WebError(503, "Exception: " + e);
+	}
+    }
+
+    /**
+     * Iterator over the lines of a response body, without their line
+     * terminators.  Only one line is held in memory at a time.  Since
+     * Iterator can't throw checked exceptions, I/O errors surface as
+     * UncheckedIOException.  The stream is closed at end of input or
+     * by close().  May be used in a for-each loop, once.
+     */
+    public static class Lines
+	implements Iterator<String>, Iterable<String>, Closeable
+    {
+	private final BufferedReader rd;
+	private String next;
+	private boolean done;
+
+	Lines(BufferedReader rd) {
+	    this.rd = rd;
+	}
+
+	public boolean hasNext() {
+	    if (next != null) return true;
+	    if (done) return false;
+	    try {
+		next = rd.readLine();
+	    } catch (IOException e) {
+		close();
+		throw new UncheckedIOException(e);
+	    }
+	    if (next == null)
+		close();
+	    return next != null;
+	}
+
+	public String next() {
+	    if (!hasNext())
+		throw new NoSuchElementException();
+	    String line = next;
+	    next = null;
+	    return line;
+	}
+
+	public Iterator<String> iterator() {
+	    return this;
+	}
+
+	public void close() {
+	    done = true;
+	    Utils.closeQuietly(rd);
+	}
+    }
+
     /**
      * Append the given arguments to the given URL and return the results
      * as an InputStream
@@ -259,13 +971,7 @@ class WebHelper {
     public HttpResponse post(String url, Map<String,Object> data)
 	throws WebError
     {
-	List<NameValuePair> pairs = new ArrayList<NameValuePair>(data.size());
-	NameValuePair pair;
-	for (Map.Entry<String,Object> e : data.entrySet()) {
-	    pair = new BasicNameValuePair(e.getKey(), e.getValue().toString());
-	    pairs.add(pair);
-	}
-	return post(url, pairs);
+	return post(new HttpPost(url), new FormEncoder.Entity(data));
     }
 
     /**
@@ -274,13 +980,7 @@ class WebHelper {
      * @param name,value, ...   All must be strings.
      */
     public HttpResponse post(String url, String... args) throws WebError {
-	List<NameValuePair> pairs = new ArrayList<NameValuePair>(args.length/2);
-	NameValuePair pair;
-	for (int i = 0; i < args.length; i += 2) {
-	    pair = new BasicNameValuePair(args[i], args[i+1]);
-	    pairs.add(pair);
-	}
-	return post(url, pairs);
+	return post(new HttpPost(url), new FormEncoder.Entity(args));
     }
 
     /**
@@ -302,8 +1002,13 @@ class WebHelper {
 	    new ArrayList<MultiPartProducer.MultiPartPair>(2);
 	parts.add(new MultiPartProducer.MultiPartPair("from", from));
 	parts.add(new MultiPartProducer.MultiPartPair("file", file, name));
-	EntityTemplate e =
-	    new EntityTemplate(new MultiPartProducer(sep, parts));
+	MultiPartProducer.Entity e;
+	try {
+	    e = new MultiPartProducer.Entity(sep, parts);
+	} catch (IOException e1) {
+	    Log.e(TAG, "IO exception: " + e1);
+	    throw new WebError(503, "Exception: " + e1);
+	}
 	return post(req, e);
     }
 
@@ -330,26 +1035,18 @@ class WebHelper {
      */
     public HttpResponse post(HttpPost req, HttpEntity data) throws WebError {
 	try {
+	    if (mGzipRequests && data.getContentEncoding() == null)
+		data = new GzipEntity(data);
 	    req.setEntity(data);
-	    HttpResponse resp = mClient.execute(req);
+	    HttpResponse resp = execute(req);
 	    int status = resp.getStatusLine().getStatusCode();
 	    if (status != HttpStatus.SC_OK) {
 		//Log.w(TAG,
 		//  "http error: " + resp.getStatusLine().getReasonPhrase());
+		consume(resp);
 		throw new WebError(resp);
 	    }
 	    return resp;
-	} catch (ClientProtocolException e) {
-	    Log.e(TAG, "Protocol exception: " + e);
-	    throw new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
-	    			"Exception: " + e);
-	} catch (UnknownHostException e) {
-	    throw new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
-	    			"Exception: " + e);
-	} catch (IOException e) {
-	    Log.e(TAG, "IO exception: " + e);
-	    throw new WebError(HttpStatus.SC_SERVICE_UNAVAILABLE,
-	    			"Exception: " + e);
 	} catch (WebError e) {
 	    throw e;
 	} catch (Exception e) {
@@ -359,6 +1056,172 @@ class WebHelper {
 	}
     }
 
+    /**
+     * Choose the Executor that runs this object's async requests.  The
+     * underlying HTTP client blocks, so each request in flight holds a
+     * thread.  The default is a shared pool sized to the connection
+     * pool.  On Java 21 and later,
+     * Executors.newVirtualThreadPerTaskExecutor() lets thousands of
+     * requests wait without thousands of OS threads.
+     * @param executor  Executor to use, or null for the default
+     */
+    public void setExecutor(Executor executor) {
+	mExecutor = executor;
+    }
+
+    Executor executor() {
+	if (mExecutor != null)
+	    return mExecutor;
+	synchronized (WebHelper.class) {
+	    if (sAsync == null)
+		sAsync = new ThreadPoolExecutor(sMaxTotal, sMaxTotal,
+		    0, TimeUnit.MILLISECONDS,
+		    new LinkedBlockingQueue<Runnable>(),
+		    new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			    Thread t = new Thread(r, "WebHelper async");
+			    t.setDaemon(true);
+			    return t;
+			}
+		    });
+	    return sAsync;
+	}
+    }
+
+    /**
+     * One blocking WebHelper call, to be run by async().
+     */
+    private interface Call<T> {
+	T call() throws WebError;
+    }
+
+    /**
+     * Run call on the executor, returning a future for its result.
+     * Failures are always delivered as WebError.
+     */
+    private <T> CompletableFuture<T> async(final Call<T> call) {
+	final CompletableFuture<T> f = new CompletableFuture<T>();
+	try {
+	    executor().execute(() -> {
+		if (f.isDone())		// cancelled while queued
+		    return;
+		try {
+		    f.complete(call.call());
+		} catch (WebError e) {
+		    f.completeExceptionally(e);
+		} catch (Throwable e) {
+		    // even an Error must fail f, or join() waits forever
+		    Log.e(TAG, "Unknown exception: " + e);
+		    f.completeExceptionally(new WebError(503, "Exception: " + e));
+		    if (e instanceof Error)
+			throw (Error) e;
+		}
+	    });
+	} catch (RejectedExecutionException e) {
+	    f.completeExceptionally(new WebError(503, "Exception: " + e));
+	}
+	return f;
+    }
+
+    /**
+     * GET the given url asynchronously.  See get(String)
+     */
+    public CompletableFuture<HttpResponse> getAsync(final String url) {
+	return async(() -> get(url));
+    }
+
+    /**
+     * Fetch the given request asynchronously.  See get(HttpRequestBase)
+     */
+    public CompletableFuture<HttpResponse> getAsync(
+	final HttpRequestBase req)
+    {
+	return async(() -> get(req));
+    }
+
+    /**
+     * GET the given url asynchronously, returning the body as a string.
+     * The connection is back in the pool by the time the future
+     * completes.
+     */
+    public CompletableFuture<String> getStringAsync(final String url) {
+	return async(() -> getString(url));
+    }
+
+    public CompletableFuture<String> getStringAsync(
+	final HttpRequestBase req)
+    {
+	return async(() -> getString(req));
+    }
+
+    /**
+     * Append args to url and GET asynchronously.  Close the stream.
+     */
+    public CompletableFuture<InputStream> getArgsAsync(final String url,
+	final String args)
+    {
+	return async(() -> getArgs(url, args));
+    }
+
+    /**
+     * Append args to the default url and GET asynchronously.
+     */
+    public CompletableFuture<InputStream> getArgsAsync(final String args) {
+	return async(() -> getArgs(args));
+    }
+
+    /**
+     * Fetch the headers for the given url asynchronously.
+     */
+    public CompletableFuture<HttpResponse> headAsync(final String url) {
+	return async(() -> head(url));
+    }
+
+    /**
+     * POST asynchronously; see the corresponding post() methods.
+     */
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final String data)
+    {
+	return async(() -> post(url, data));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final List<NameValuePair> data)
+    {
+	return async(() -> post(url, data));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final Map<String,Object> data)
+    {
+	return async(() -> post(url, data));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final String... args)
+    {
+	return async(() -> post(url, args));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final String from, final File file, final String name)
+    {
+	return async(() -> post(url, from, file, name));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final String url,
+	final HttpEntity data)
+    {
+	return async(() -> post(url, data));
+    }
+
+    public CompletableFuture<HttpResponse> postAsync(final HttpPost req,
+	final HttpEntity data)
+    {
+	return async(() -> post(req, data));
+    }
+
     /**
      * Utility: convert HttpResponse to HttpEntity
      * @throws WebError
@@ -373,7 +1236,8 @@ class WebHelper {
     }
 
     /**
-     * Utility: convert HttpEntity to InputStream
+     * Utility: convert HttpEntity to InputStream.  A gzip or deflate
+     * Content-Encoding is decoded on the fly.
      * @throws WebError
      * Tip: use Utils.inputStreamAsString() to convert InputStream to String
      */
@@ -381,6 +1245,8 @@ class WebHelper {
 	InputStream input;
 	try {
 	    input = entity.getContent();
+	    if (input != null)
+		input = decode(input, entity.getContentEncoding());
 	} catch (IOException e) {
 	    Log.e(TAG, "IO exception: " + e);
 	    throw new WebError(503, "Exception: " + e);
@@ -392,10 +1258,147 @@ class WebHelper {
 	return input;
     }
 
+    /**
+     * Wrap input to undo the given Content-Encoding, if any.
+     */
+    private static InputStream decode(InputStream input, Header encoding)
+	throws IOException
+    {
+	if (encoding == null)
+	    return input;
+	String enc = encoding.getValue().trim().toLowerCase(Locale.US);
+	if (enc.length() == 0 || enc.equals("identity"))
+	    return input;
+	if (enc.equals("gzip") || enc.equals("x-gzip"))
+	    return new Releasing(new GZIPInputStream(input, 8192), input);
+	if (enc.equals("deflate")) {
+	    // Properly a zlib stream, but some servers send raw deflate.
+	    // A zlib header is 0x?8 with the first 16 bits a multiple of 31.
+	    PushbackInputStream pb = new PushbackInputStream(input, 2);
+	    int b0 = pb.read(), b1 = pb.read();
+	    if (b1 >= 0) pb.unread(b1);
+	    if (b0 >= 0) pb.unread(b0);
+	    boolean zlib = b1 >= 0 && (b0 & 0xf) == 8 && (b0*256 + b1) % 31 == 0;
+	    final Inflater inf = new Inflater(!zlib);
+	    return new Releasing(new InflaterInputStream(pb, inf, 8192) {
+		public void close() throws IOException {
+		    try { super.close(); } finally { inf.end(); }
+		}
+	    }, input);
+	}
+	Log.w(TAG, "Unsupported Content-Encoding: " + enc);
+	return input;
+    }
+
+    /**
+     * Decoded response stream.  The decoder may stop short of the end
+     * of the raw body, at the end of the compressed data, so the pool
+     * would never see the end; this releases the connection when the
+     * decoded data ends.  Closed before that, it aborts the connection
+     * rather than drain the rest of the body, through raw, which is
+     * the client's stream or a wrapper that passes abortConnection()
+     * down to it, as MeteredEntity's does.
+     */
+    private static class Releasing extends FilterInputStream {
+	private final InputStream raw;
+	private boolean done = false;
+
+	Releasing(InputStream decoded, InputStream raw) {
+	    super(decoded);
+	    this.raw = raw;
+	}
+
+	public int read() throws IOException {
+	    if (done) return -1;
+	    int c = super.read();
+	    if (c < 0) release();
+	    return c;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (done) return -1;
+	    int n = super.read(b, off, len);
+	    if (n < 0) release();
+	    return n;
+	}
+
+	public long skip(long n) throws IOException {
+	    return done ? 0 : super.skip(n);
+	}
+
+	public int available() throws IOException {
+	    return done ? 0 : super.available();
+	}
+
+	private void release() throws IOException {
+	    done = true;
+	    super.close();
+	}
+
+	public void close() throws IOException {
+	    if (done) return;
+	    done = true;
+	    try {
+		if (raw instanceof ConnectionReleaseTrigger)
+		    ((ConnectionReleaseTrigger) raw).abortConnection();
+	    } finally {
+		super.close();
+	    }
+	}
+    }
+
+    /**
+     * Entity wrapper that gzips the wrapped entity as it is written.
+     * The compressed length isn't known ahead of time, so it is sent
+     * chunked.
+     */
+    static class GzipEntity extends HttpEntityWrapper {
+	GzipEntity(HttpEntity entity) {
+	    super(entity);
+	}
+
+	public Header getContentEncoding() {
+	    return new BasicHeader("Content-Encoding", "gzip");
+	}
+
+	public long getContentLength() {
+	    return -1;
+	}
+
+	public boolean isChunked() {
+	    return true;
+	}
+
+	public InputStream getContent() {
+	    throw new UnsupportedOperationException();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+	    GZIPOutputStream gz = new GZIPOutputStream(out, 8192);
+	    wrappedEntity.writeTo(gz);
+	    gz.finish();
+	}
+    }
+
+    /**
+     * Utility: read and discard whatever is left of a response body,
+     * returning its connection to the pool.
+     */
+    public static void consume(HttpResponse resp) {
+	HttpEntity entity = resp.getEntity();
+	if (entity == null) return;
+	try {
+	    entity.consumeContent();
+	} catch (IOException e) {
+	    Log.w(TAG, "IO exception discarding response: " + e);
+	}
+    }
 
     // Free resources.
     public void close() {
+      if (mClient == null) return;
       mClient = null;
+      releasePool();
     }
 
     /**
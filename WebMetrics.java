@@ -0,0 +1,55 @@
+// $Id$
+
+/**
+ * Instrumentation hooks for WebHelper.
+ */
+
+package com.android.recovery;
+
+/**
+ * Receives timings and counts for every request a WebHelper makes.
+ * Install with WebHelper.setMetrics(); WebStats is a ready-made
+ * implementation.  Methods are called on the requesting thread, in the
+ * middle of the request, so they must be quick and thread-safe.
+ *
+ * host is "host:port".  Times are in nanoseconds from the start of
+ * the attempt.  A request retried by a WebPolicy reports each attempt.
+ */
+interface WebMetrics {
+    /**
+     * A new connection was opened; nanos covers name lookup, TCP
+     * connect and, for https, the TLS handshake.  Not called when a
+     * pooled connection is reused.
+     */
+    void connected(String host, long nanos);
+
+    /**
+     * Response headers arrived (time to first byte).
+     */
+    void response(String host, String method, int status, long nanos);
+
+    /**
+     * The response body has been read to the end, closed or discarded.
+     * @param bytesIn   body bytes received, as sent on the wire
+     * @param bytesOut  request body bytes sent
+     */
+    void completed(String host, String method, int status, long nanos,
+	long bytesIn, long bytesOut);
+
+    /**
+     * No response: connect failed, I/O error, or aborted.
+     */
+    void failed(String host, String method, long nanos);
+
+    /**
+     * A WebPolicy is about to retry.
+     */
+    void retried(String host, String method);
+
+    /**
+     * Shared connection pool usage, sampled once per request.
+     * @param open  connections currently open, leased or idle
+     * @param max   pool limit
+     */
+    void pool(int open, int max);
+}
@@ -0,0 +1,465 @@
+// $Id$
+
+/**
+ * Retry, circuit breaker, hedging and timeout policy for WebHelper.
+ */
+
+package com.android.recovery;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.util.Log;
+
+/**
+ * How WebHelper copes with failure.  Install with
+ * WebHelper.setPolicy(); the defaults are a reasonable start:
+ *
+ *	WebPolicy p = new WebPolicy();
+ *	p.setTimeouts(2000, 10000, 15000);
+ *	web.setPolicy(p);
+ *
+ * Retries: a request that fails to get a response, or gets 429, 502,
+ * 503 or 504, is tried again up to maxRetries times after a backoff of
+ * a random time up to baseMs * 2^attempt, capped at maxMs ("full
+ * jitter", so that many clients don't retry in lockstep).  A numeric
+ * Retry-After is honored, within maxMs.  Only idempotent methods (GET,
+ * HEAD, PUT, DELETE, OPTIONS), and requests with the IDEMPOTENT
+ * parameter set, are retried after the request may have reached the
+ * server; others, e.g. POST, only when the connection was never made,
+ * and only if their entity can be sent again.
+ *
+ * Circuit breakers: after `failures` consecutive failures (no response,
+ * or 5xx) from a host and port, requests to it fail at once with 503
+ * for openMs.  Then one trial request is let through; success closes
+ * the breaker, failure opens it again.
+ *
+ * Hedging: a GET or HEAD with no response after hedgeMs is sent a
+ * second time on another connection, and whichever answers first wins;
+ * the other is aborted.  This trims tail latency at the cost of a few
+ * percent more requests.  Off by default.
+ *
+ * Timeouts: connect, read (longest silence on the socket, including
+ * while the caller reads the body) and total (from the start of the
+ * call until response headers arrive, across all attempts and
+ * backoffs; the request is aborted when it expires).  0 means none.
+ *
+ * Thread-safe; share one policy between WebHelpers.
+ */
+class WebPolicy {
+    static private final String TAG = "WebPolicy";
+
+    /**
+     * Request parameter: true if the request may be sent twice even
+     * though its method says otherwise, e.g. a POST the server
+     * deduplicates.
+     */
+    static final String IDEMPOTENT = "WebPolicy.idempotent";
+
+    private int mMaxRetries = 3;
+    private long mBaseMs = 100, mMaxMs = 5000;
+    private boolean mRetryPosts = false;
+    private int mBreakerFailures = 5;
+    private long mBreakerOpenMs = 10000;
+    private long mHedgeMs = 0;
+    private int mConnectMs = 0, mReadMs = 0;
+    private long mTotalMs = 0;
+
+    private final ConcurrentHashMap<String,Breaker> mBreakers =
+	new ConcurrentHashMap<String,Breaker>();
+
+    private static ScheduledExecutorService sTimer = null;
+    private static ExecutorService sHedge = null;
+
+    public WebPolicy() { }
+
+    /**
+     * @param maxRetries  retries after the first attempt; 0 for none
+     * @param baseMs      backoff before the first retry, at most
+     * @param maxMs       cap on any one backoff
+     */
+    public void setRetries(int maxRetries, long baseMs, long maxMs) {
+	mMaxRetries = maxRetries;
+	mBaseMs = baseMs;
+	mMaxMs = maxMs;
+    }
+
+    /**
+     * Retry non-idempotent requests after failures that may have
+     * reached the server, too.  Only if the server tolerates duplicates.
+     */
+    public void setRetryNonIdempotent(boolean retry) {
+	mRetryPosts = retry;
+    }
+
+    /**
+     * @param failures  consecutive failures that open a host's breaker;
+     *                  0 disables breakers
+     * @param openMs    how long it stays open before a trial request
+     */
+    public void setCircuitBreaker(int failures, long openMs) {
+	mBreakerFailures = failures;
+	mBreakerOpenMs = openMs;
+    }
+
+    /**
+     * @param hedgeMs  send a second copy of a GET or HEAD that has had
+     *                 no response this long; 0 disables hedging
+     */
+    public void setHedge(long hedgeMs) {
+	mHedgeMs = hedgeMs;
+    }
+
+    /**
+     * @param connectMs  connect timeout, also the wait for a pooled
+     *                   connection
+     * @param readMs     socket read timeout
+     * @param totalMs    deadline for the whole call
+     */
+    public void setTimeouts(int connectMs, int readMs, long totalMs) {
+	mConnectMs = connectMs;
+	mReadMs = readMs;
+	mTotalMs = totalMs;
+    }
+
+    /**
+     * Per-host circuit breaker.
+     */
+    private static class Breaker {
+	int failures;
+	long openUntil;		// 0 when closed
+	boolean trial;		// a half-open trial is in flight
+
+	synchronized boolean allow(long now) {
+	    if (openUntil == 0) return true;
+	    if (now < openUntil || trial) return false;
+	    trial = true;
+	    return true;
+	}
+
+	synchronized void success() {
+	    failures = 0;
+	    openUntil = 0;
+	    trial = false;
+	}
+
+	synchronized void failure(int threshold, long openMs, long now) {
+	    trial = false;
+	    if (++failures >= threshold || openUntil != 0)
+		openUntil = now + openMs;
+	}
+    }
+
+    /**
+     * Execute req under this policy.  Called by WebHelper.execute().
+     * Returns the last response received, whatever its status.
+     */
+    HttpResponse execute(WebHelper web, final HttpRequestBase req)
+	throws WebHelper.WebError
+    {
+	final long start = System.currentTimeMillis();
+	final long deadline = mTotalMs > 0 ? start + mTotalMs : Long.MAX_VALUE;
+	final String host = req.getURI().getHost() == null ? null
+	    : WebHelper.hostKey(req);
+	final boolean idempotent = idempotent(req);
+	final boolean resendable = !(req instanceof HttpEntityEnclosingRequest)
+	    || ((HttpEntityEnclosingRequest) req).getEntity() == null
+	    || ((HttpEntityEnclosingRequest) req).getEntity().isRepeatable();
+	Breaker breaker = null;
+	if (mBreakerFailures > 0 && host != null) {
+	    breaker = mBreakers.get(host);
+	    if (breaker == null) {
+		mBreakers.putIfAbsent(host, new Breaker());
+		breaker = mBreakers.get(host);
+	    }
+	}
+	setTimeouts(req.getParams());
+
+	// Abort whatever is in flight when the deadline passes
+	final List<HttpRequestBase> live = new ArrayList<HttpRequestBase>(2);
+	ScheduledFuture<?> killer = null;
+	if (mTotalMs > 0)
+	    killer = timer().schedule(new Runnable() {
+		public void run() {
+		    synchronized (live) {
+			for (HttpRequestBase r : live)
+			    r.abort();
+		    }
+		}
+	    }, mTotalMs, TimeUnit.MILLISECONDS);
+
+	// The request for this attempt.  A request that lost a hedge is
+	// aborted for good, so the next attempt sends a copy.
+	HttpRequestBase r = req;
+	final AtomicBoolean lostHedge = new AtomicBoolean();
+	try {
+	    for (int attempt = 0; ; ++attempt) {
+		boolean lost = lostHedge.getAndSet(false);
+		if (r.isAborted()) {
+		    if (!lost)
+			throw new WebHelper.WebError(503, "Aborted");
+		    r = copy(r);
+		}
+		long now = System.currentTimeMillis();
+		if (breaker != null && !breaker.allow(now))
+		    throw new WebHelper.WebError(503,
+			"Circuit open for " + host);
+		HttpResponse resp = null;
+		WebHelper.WebError err = null;
+		try {
+		    resp = (mHedgeMs > 0 && (r instanceof HttpGet ||
+			    r instanceof HttpHead))
+			? hedged(web, r, live, lostHedge) : once(web, r, live);
+		} catch (WebHelper.WebError e) {
+		    err = e;
+		}
+		now = System.currentTimeMillis();
+		int status = resp == null ? 0 : resp.getStatusLine().getStatusCode();
+		if (breaker != null) {
+		    if (err != null || status >= 500)
+			breaker.failure(mBreakerFailures, mBreakerOpenMs, now);
+		    else
+			breaker.success();
+		}
+		if (now >= deadline) {
+		    if (resp != null && err == null)
+			return resp;
+		    throw new WebHelper.WebError(504,
+			"Timed out after " + (now - start) + "ms");
+		}
+
+		boolean retry;
+		if (err != null)
+		    retry = resendable &&
+			(idempotent || mRetryPosts || notSent(err));
+		else
+		    retry = (status == 429 || status == 502 || status == 503 ||
+			status == 504) && resendable &&
+			(idempotent || mRetryPosts);
+		if (!retry || attempt >= mMaxRetries) {
+		    if (err != null)
+			throw err;
+		    return resp;
+		}
+
+		long delay = backoff(attempt);
+		if (resp != null) {
+		    delay = Math.max(delay, retryAfter(resp));
+		    WebHelper.consume(resp);
+		}
+		delay = Math.min(delay, deadline - now);
+		WebMetrics metrics = web.getMetrics();
+		if (metrics != null)
+		    metrics.retried(host, req.getMethod());
+		Log.w(TAG, req.getMethod() + " " + req.getURI() + ": " +
+		    (err != null ? err.toString() : "" + status) +
+		    ", retry in " + delay + "ms");
+		if (delay > 0 && Utils.sleep((int) delay))
+		    throw new WebHelper.WebError(503, "Interrupted");
+	    }
+	} finally {
+	    if (killer != null)
+		killer.cancel(false);
+	}
+    }
+
+    /**
+     * One attempt, abortable by the deadline.
+     */
+    private static HttpResponse once(WebHelper web, HttpRequestBase req,
+	List<HttpRequestBase> live) throws WebHelper.WebError
+    {
+	synchronized (live) {
+	    live.add(req);
+	}
+	try {
+	    return web.executeOnce(req);
+	} finally {
+	    synchronized (live) {
+		live.remove(req);
+	    }
+	}
+    }
+
+    /**
+     * A fresh GET or HEAD with the same url, headers and parameters.
+     */
+    private static HttpRequestBase copy(HttpRequestBase req) {
+	HttpRequestBase copy = req instanceof HttpHead
+	    ? new HttpHead(req.getURI()) : new HttpGet(req.getURI());
+	copy.setHeaders(req.getAllHeaders());
+	copy.setParams(req.getParams());
+	return copy;
+    }
+
+    /**
+     * Send req from this thread; if it hasn't been answered after
+     * mHedgeMs, send a copy from another.  Return the first response,
+     * or the last error if both fail.  If the copy wins, req is left
+     * aborted and lost is set.
+     */
+    private HttpResponse hedged(final WebHelper web, final HttpRequestBase req,
+	final List<HttpRequestBase> live, final AtomicBoolean lost)
+	throws WebHelper.WebError
+    {
+	final CompletableFuture<HttpResponse> winner =
+	    new CompletableFuture<HttpResponse>();
+	final AtomicInteger pending = new AtomicInteger(1);
+	final HttpRequestBase copy = copy(req);
+
+	ScheduledFuture<?> hedge = timer().schedule(new Runnable() {
+	    public void run() {
+		if (winner.isDone()) return;
+		pending.incrementAndGet();
+		hedgeExecutor().execute(new Runnable() {
+		    public void run() {
+			race(web, copy, req, live, winner, pending, lost);
+		    }
+		});
+	    }
+	}, mHedgeMs, TimeUnit.MILLISECONDS);
+
+	race(web, req, copy, live, winner, pending, null);
+	hedge.cancel(false);
+	try {
+	    return winner.get();
+	} catch (InterruptedException e) {
+	    req.abort();
+	    copy.abort();
+	    throw new WebHelper.WebError(503, "Interrupted");
+	} catch (ExecutionException e) {
+	    throw (WebHelper.WebError) e.getCause();
+	}
+    }
+
+    /**
+     * Run one side of a hedged pair.  The first success completes
+     * winner and aborts the other side, setting otherLost if given; a
+     * late success is discarded.
+     */
+    private static void race(WebHelper web, HttpRequestBase mine,
+	HttpRequestBase other, List<HttpRequestBase> live,
+	CompletableFuture<HttpResponse> winner, AtomicInteger pending,
+	AtomicBoolean otherLost)
+    {
+	try {
+	    HttpResponse resp = once(web, mine, live);
+	    if (winner.complete(resp)) {
+		if (otherLost != null)
+		    otherLost.set(true);
+		other.abort();
+	    }
+	    else
+		WebHelper.consume(resp);
+	} catch (WebHelper.WebError e) {
+	    if (pending.decrementAndGet() == 0)
+		winner.completeExceptionally(e);
+	}
+    }
+
+    /**
+     * Full jitter: uniform in [0, min(maxMs, baseMs * 2^attempt)].
+     */
+    private long backoff(int attempt) {
+	return backoff(attempt, mBaseMs, mMaxMs);
+    }
+
+    /**
+     * The same for any base and cap; ChunkTransfer uses it too.
+     */
+    static long backoff(int attempt, long baseMs, long maxMs) {
+	long cap = Math.min(maxMs, baseMs << Math.min(attempt, 30));
+	return (long) (ThreadLocalRandom.current().nextDouble() * cap);
+    }
+
+    /**
+     * Retry-After in ms, if given in seconds, capped at mMaxMs.
+     */
+    private long retryAfter(HttpResponse resp) {
+	Header h = resp.getFirstHeader("Retry-After");
+	if (h == null) return 0;
+	try {
+	    return Math.min(Long.parseLong(h.getValue().trim()) * 1000, mMaxMs);
+	} catch (NumberFormatException e) {
+	    return 0;
+	}
+    }
+
+    private void setTimeouts(HttpParams params) {
+	if (mConnectMs > 0) {
+	    HttpConnectionParams.setConnectionTimeout(params, mConnectMs);
+	    ConnManagerParams.setTimeout(params, mConnectMs);
+	}
+	if (mReadMs > 0)
+	    HttpConnectionParams.setSoTimeout(params, mReadMs);
+    }
+
+    private static boolean idempotent(HttpRequestBase req) {
+	String m = req.getMethod();
+	return req.getParams().getBooleanParameter(IDEMPOTENT, false) ||
+	    m.equals("GET") || m.equals("HEAD") || m.equals("PUT") ||
+	    m.equals("DELETE") || m.equals("OPTIONS");
+    }
+
+    /**
+     * True if the error means the request never left this machine, so
+     * it is safe to send again whatever the method.  This includes
+     * timing out waiting for a pooled connection.
+     */
+    private static boolean notSent(WebHelper.WebError e) {
+	Throwable c = e.getCause();
+	return c instanceof ConnectException ||
+	    c instanceof ConnectTimeoutException;
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+	if (sTimer == null)
+	    sTimer = Executors.newSingleThreadScheduledExecutor(
+		daemon("WebPolicy timer"));
+	return sTimer;
+    }
+
+    /**
+     * Hedge copies get their own threads, so they can't be starved by
+     * the callers waiting for them.
+     */
+    private static synchronized ExecutorService hedgeExecutor() {
+	if (sHedge == null)
+	    sHedge = Executors.newCachedThreadPool(daemon("WebPolicy hedge"));
+	return sHedge;
+    }
+
+    private static ThreadFactory daemon(final String name) {
+	return new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	    }
+	};
+    }
+}
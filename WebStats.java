@@ -0,0 +1,280 @@
+// $Id$
+
+/**
+ * Default in-process WebMetrics: latency histograms and counters.
+ */
+
+package com.android.recovery;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects WebMetrics into one set of figures per host and method:
+ * histograms of connect time, time to first byte and total time;
+ * bytes in and out; counts by status, failures and retries.  Plus the
+ * largest number of pooled connections seen open.
+ *
+ * Recording is lock-free, a map lookup and a few atomic increments, so
+ * it can stay on in production.  Histograms are HdrHistogram-style:
+ * log-linear buckets with 16 sub-buckets per power of two, i.e. about
+ * 6% precision, from 1us to over 12 days, in a fixed 592 counters.
+ *
+ *	WebStats stats = new WebStats();
+ *	web.setMetrics(stats);
+ *	...
+ *	Log.i(TAG, stats.toString());
+ */
+class WebStats implements WebMetrics {
+    private final ConcurrentHashMap<String,Endpoint> mEndpoints =
+	new ConcurrentHashMap<String,Endpoint>();
+    private final ConcurrentHashMap<String,Histogram> mConnect =
+	new ConcurrentHashMap<String,Histogram>();
+    private final AtomicInteger mPoolOpen = new AtomicInteger();
+    private final AtomicInteger mPoolPeak = new AtomicInteger();
+    private volatile int mPoolMax;
+
+    /**
+     * Log-linear histogram of microsecond values.
+     */
+    public static class Histogram {
+	private static final int SUB = 4;		// 2^SUB sub-buckets
+	private static final int NBUCKETS = (40 - SUB + 1) << SUB;
+	private final AtomicLongArray counts = new AtomicLongArray(NBUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value in microseconds.
+	 */
+	public void record(long us) {
+	    if (us < 0) us = 0;
+	    counts.incrementAndGet(index(us));
+	    count.incrementAndGet();
+	    sum.addAndGet(us);
+	    long m;
+	    while (us > (m = max.get()) && !max.compareAndSet(m, us))
+		;
+	}
+
+	private static int index(long v) {
+	    if (v < (1 << SUB))
+		return (int) v;
+	    int e = 63 - Long.numberOfLeadingZeros(v);	// v >= 2^e
+	    int sub = (int) (v >>> (e - SUB)) & ((1 << SUB) - 1);
+	    int i = ((e - SUB + 1) << SUB) + sub;
+	    return Math.min(i, NBUCKETS - 1);
+	}
+
+	/**
+	 * Smallest value that falls in bucket i.
+	 */
+	private static long lowest(int i) {
+	    if (i < (1 << SUB))
+		return i;
+	    int e = (i >>> SUB) + SUB - 1;
+	    return (1L << e) + ((long) (i & ((1 << SUB) - 1)) << (e - SUB));
+	}
+
+	public long getCount() {
+	    return count.get();
+	}
+
+	public long getMax() {
+	    return max.get();
+	}
+
+	public double getMean() {
+	    long n = count.get();
+	    return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Return the value at the given percentile (0-100), to within
+	 * the precision of the buckets.
+	 */
+	public long getPercentile(double p) {
+	    long n = count.get();
+	    if (n == 0) return 0;
+	    long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+	    long seen = 0;
+	    for (int i = 0; i < NBUCKETS; ++i) {
+		seen += counts.get(i);
+		if (seen >= rank)
+		    return Math.min(i + 1 < NBUCKETS ? lowest(i + 1) - 1
+						     : Long.MAX_VALUE, max.get());
+	    }
+	    return max.get();
+	}
+
+	public String toString() {
+	    return "n=" + getCount() + " p50=" + getPercentile(50) +
+		" p90=" + getPercentile(90) + " p99=" + getPercentile(99) +
+		" max=" + getMax() + "us";
+	}
+    }
+
+    /**
+     * Figures for one host and method.
+     */
+    public static class Endpoint {
+	public final Histogram ttfb = new Histogram();
+	public final Histogram total = new Histogram();
+	public final AtomicLong bytesIn = new AtomicLong();
+	public final AtomicLong bytesOut = new AtomicLong();
+	public final AtomicLong failures = new AtomicLong();
+	public final AtomicLong retries = new AtomicLong();
+	// index status/100 (0 unused), then by exact code in statusCodes
+	public final AtomicLongArray statusClass = new AtomicLongArray(6);
+	final ConcurrentHashMap<Integer,AtomicLong> statusCodes =
+	    new ConcurrentHashMap<Integer,AtomicLong>();
+
+	void status(int status) {
+	    if (status >= 100 && status < 600)
+		statusClass.incrementAndGet(status / 100);
+	    AtomicLong c = statusCodes.get(status);
+	    if (c == null) {
+		statusCodes.putIfAbsent(status, new AtomicLong());
+		c = statusCodes.get(status);
+	    }
+	    c.incrementAndGet();
+	}
+
+	/**
+	 * Return the number of responses with exactly this status.
+	 */
+	public long getStatusCount(int status) {
+	    AtomicLong c = statusCodes.get(status);
+	    return c == null ? 0 : c.get();
+	}
+    }
+
+    private Endpoint endpoint(String host, String method) {
+	String key = method + " " + host;
+	Endpoint e = mEndpoints.get(key);
+	if (e == null) {
+	    mEndpoints.putIfAbsent(key, new Endpoint());
+	    e = mEndpoints.get(key);
+	}
+	return e;
+    }
+
+    /**
+     * Return the figures for one host ("host:port") and method, or
+     * null if there have been no requests.
+     */
+    public Endpoint get(String host, String method) {
+	return mEndpoints.get(method + " " + host);
+    }
+
+    /**
+     * Return the connect time histogram for one host, or null.
+     */
+    public Histogram getConnect(String host) {
+	return mConnect.get(host);
+    }
+
+    /**
+     * Return the most connections seen open at once, and the limit.
+     */
+    public int getPoolPeak() {
+	return mPoolPeak.get();
+    }
+
+    public int getPoolMax() {
+	return mPoolMax;
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void reset() {
+	mEndpoints.clear();
+	mConnect.clear();
+	mPoolPeak.set(0);
+    }
+
+    // WebMetrics
+
+    public void connected(String host, long nanos) {
+	Histogram h = mConnect.get(host);
+	if (h == null) {
+	    mConnect.putIfAbsent(host, new Histogram());
+	    h = mConnect.get(host);
+	}
+	h.record(nanos / 1000);
+    }
+
+    public void response(String host, String method, int status,
+	long nanos)
+    {
+	Endpoint e = endpoint(host, method);
+	e.ttfb.record(nanos / 1000);
+	e.status(status);
+    }
+
+    public void completed(String host, String method, int status,
+	long nanos, long bytesIn, long bytesOut)
+    {
+	Endpoint e = endpoint(host, method);
+	e.total.record(nanos / 1000);
+	if (bytesIn > 0) e.bytesIn.addAndGet(bytesIn);
+	if (bytesOut > 0) e.bytesOut.addAndGet(bytesOut);
+    }
+
+    public void failed(String host, String method, long nanos) {
+	Endpoint e = endpoint(host, method);
+	e.failures.incrementAndGet();
+	e.total.record(nanos / 1000);
+    }
+
+    public void retried(String host, String method) {
+	endpoint(host, method).retries.incrementAndGet();
+    }
+
+    public void pool(int open, int max) {
+	mPoolOpen.set(open);
+	mPoolMax = max;
+	int p;
+	while (open > (p = mPoolPeak.get()) &&
+	       !mPoolPeak.compareAndSet(p, open))
+	    ;
+    }
+
+    /**
+     * Multi-line summary, one block per host and method, sorted.
+     */
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	sb.append("pool: open ").append(mPoolOpen.get())
+	  .append(" peak ").append(mPoolPeak.get())
+	  .append(" max ").append(mPoolMax).append('\n');
+	for (Map.Entry<String,Histogram> me :
+		new TreeMap<String,Histogram>(mConnect).entrySet())
+	    sb.append("connect ").append(me.getKey()).append(": ")
+	      .append(me.getValue()).append('\n');
+	for (Map.Entry<String,Endpoint> me :
+		new TreeMap<String,Endpoint>(mEndpoints).entrySet()) {
+	    Endpoint e = me.getValue();
+	    sb.append(me.getKey()).append('\n');
+	    sb.append("  ttfb:  ").append(e.ttfb).append('\n');
+	    sb.append("  total: ").append(e.total).append('\n');
+	    sb.append("  bytes in ").append(e.bytesIn.get())
+	      .append(" out ").append(e.bytesOut.get())
+	      .append(", failures ").append(e.failures.get())
+	      .append(", retries ").append(e.retries.get()).append('\n');
+	    sb.append("  status:");
+	    for (Map.Entry<Integer,AtomicLong> s :
+		    new TreeMap<Integer,AtomicLong>(e.statusCodes).entrySet())
+		sb.append(' ').append(s.getKey()).append('=')
+		  .append(s.getValue().get());
+	    sb.append('\n');
+	}
+	return sb.toString();
+    }
+}
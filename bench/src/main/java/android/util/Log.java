@@ -0,0 +1,16 @@
+// $Id$
+
+package android.util;
+
+/**
+ * Just enough of android.util.Log for the math classes to run on a
+ * desktop JVM.
+ */
+public final class Log {
+    private Log() { }
+
+    public static int d(String tag, String msg) {
+	System.out.println(tag + ": " + msg);
+	return 0;
+    }
+}
@@ -0,0 +1,96 @@
+// $Id$
+
+package org.efalk.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.efalk.math.Matrix3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-matrix Matrix3d kernels: multiply, rotate, invert.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class MatrixBench {
+    private Matrix3d a, b, dst;
+    private Matrix3d proj;
+    private final float[] quat = {0.1f, 0.2f, 0.3f, 0.927362f};
+
+    @Setup
+    public void setup() {
+	a = new Matrix3d();
+	a.rotX(0.3); a.rotY(1.1);
+	a.rMat[12] = 1; a.rMat[13] = 2; a.rMat[14] = 3;
+	a.classify();
+	b = new Matrix3d();
+	b.rotZ(-0.7);
+	b.rMat[12] = -4;
+	b.classify();
+	proj = new Matrix3d(a);
+	proj.rMat[11] = -1;
+	proj.classify();
+	dst = new Matrix3d();
+    }
+
+    @Benchmark
+    public double[] matMul() {
+	Matrix3d.matMul(dst.rMat, a.rMat, b.rMat);
+	return dst.rMat;
+    }
+
+    @Benchmark
+    public double[] matMulNP() {
+	Matrix3d.matMulNP(dst.rMat, a.rMat, b.rMat);
+	return dst.rMat;
+    }
+
+    @Benchmark
+    public Matrix3d matMulTyped() {
+	Matrix3d.matMul(dst, a, b);
+	return dst;
+    }
+
+    @Benchmark
+    public Matrix3d rotX() {
+	a.rotX(0.001);
+	return a;
+    }
+
+    @Benchmark
+    public Matrix3d rotateXInto() {
+	Matrix3d.rotateX(dst, a, 0.001);
+	return dst;
+    }
+
+    @Benchmark
+    public Matrix3d invertRigid() {
+	Matrix3d.invert(dst, a);
+	return dst;
+    }
+
+    @Benchmark
+    public Matrix3d invertProjective() {
+	Matrix3d.invert(dst, proj);
+	return dst;
+    }
+
+    @Benchmark
+    public Matrix3d fromQuaternion() {
+	dst.fromQuaternion(quat);
+	return dst;
+    }
+}
@@ -0,0 +1,127 @@
+// $Id$
+
+package org.efalk.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.efalk.math.Matrix3d;
+import org.efalk.math.Matrix3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bulk vertex and matrix kernels over a range of sizes.  Each
+ * invocation processes vertexCount vertices (or matrices).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class XformBench {
+    @Param({"1000", "100000", "1000000"})
+    public int vertexCount;
+
+    /** Floats per vertex in the interleaved buffer: xyz, normal, uv */
+    private static final int STRIDE = 8;
+
+    private Matrix3d m;
+    private Matrix3f mf;
+    private double[] dsrc, ddst;
+    private float[] fsrc, fdst;
+    private double[] isrc, idst;
+    private double[] xs, ys, zs, xd, yd, zd;
+    private double[] mats1, mats2, matsDst;
+
+    @Setup
+    public void setup() {
+	m = new Matrix3d();
+	m.rotX(0.3); m.rotY(1.1);
+	m.rMat[12] = 1; m.rMat[13] = 2; m.rMat[14] = 3;
+	m.classify();
+	mf = new Matrix3f(m);
+	Random rng = new Random(1);
+	int n = vertexCount;
+	dsrc = new double[n*3];
+	fsrc = new float[n*3];
+	for (int i = 0; i < n*3; ++i)
+	    fsrc[i] = (float) (dsrc[i] = rng.nextGaussian());
+	ddst = new double[n*3];
+	fdst = new float[n*3];
+	isrc = new double[n*STRIDE];
+	for (int i = 0; i < isrc.length; ++i)
+	    isrc[i] = rng.nextGaussian();
+	idst = isrc.clone();
+	xs = new double[n]; ys = new double[n]; zs = new double[n];
+	xd = new double[n]; yd = new double[n]; zd = new double[n];
+	for (int i = 0; i < n; ++i) {
+	    xs[i] = dsrc[i*3]; ys[i] = dsrc[i*3+1]; zs[i] = dsrc[i*3+2];
+	}
+	mats1 = new double[n*16];
+	mats2 = new double[n*16];
+	matsDst = new double[n*16];
+	for (int i = 0; i < n*16; ++i) {
+	    mats1[i] = rng.nextGaussian();
+	    mats2[i] = rng.nextGaussian();
+	}
+    }
+
+    @Benchmark
+    public double[] xformDouble() {
+	m.xform(dsrc, ddst);
+	return ddst;
+    }
+
+    @Benchmark
+    public float[] xformFloat() {
+	m.xform(fsrc, fdst);
+	return fdst;
+    }
+
+    @Benchmark
+    public float[] xformMatrix3f() {
+	mf.xform(fsrc, fdst);
+	return fdst;
+    }
+
+    @Benchmark
+    public double[] xformStrided() {
+	m.xform(isrc, 0, idst, 0, vertexCount, STRIDE);
+	return idst;
+    }
+
+    @Benchmark
+    public double[] xformStridedNormals() {
+	m.xform(isrc, 0, idst, 0, vertexCount, STRIDE, 3);
+	return idst;
+    }
+
+    @Benchmark
+    public double[] xformParallel() {
+	m.xformParallel(dsrc, ddst);
+	return ddst;
+    }
+
+    @Benchmark
+    public double[] xformSoA() {
+	m.xformSoA(xs, ys, zs, xd, yd, zd, 0, vertexCount);
+	return xd;
+    }
+
+    @Benchmark
+    public double[] matMulBatch() {
+	Matrix3d.matMulBatch(matsDst, 0, mats1, 0, mats2, 0, vertexCount);
+	return matsDst;
+    }
+}